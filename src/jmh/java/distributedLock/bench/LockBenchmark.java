@@ -0,0 +1,184 @@
+package distributedLock.bench;
+
+import distributedLock.EmbeddedZooKeeper;
+import distributedLock.lock.DistributedLock;
+import distributedLock.lock.DistributedLockFactory;
+import distributedLock.lock.DistributedReadWriteLock;
+import distributedLock.lock.HierarchicalDistributedLock;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessReadWriteLock;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreV2;
+import org.apache.curator.framework.recipes.locks.Lease;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.utils.CloseableUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 各种锁加锁+解锁一次的吞吐量和延迟分布，连的是进程内的zookeeper，结果可以在版本之间对比
+ * 运行: mvn -Pjmh package && java -jar target/benchmarks.jar LockBenchmark
+ * 常用参数: -p lockType=DistributedLock,InterProcessMutex -p contention=high
+ * <p>
+ * contention=high时所有线程抢同一把锁，low时每个线程一把锁，只测单次加解锁的开销
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class LockBenchmark {
+
+    /**
+     * 一个trial里的zookeeper和客户端，所有线程共享
+     */
+    @State(Scope.Benchmark)
+    public static class Cluster {
+
+        @Param({"DistributedLock", "HierarchicalDistributedLock", "DistributedReadWriteLock.read",
+                "InterProcessMutex", "InterProcessSemaphoreMutex", "InterProcessReadWriteLock.read",
+                "InterProcessReadWriteLock.write", "InterProcessSemaphoreV2"})
+        public String lockType;
+
+        @Param({"high", "low"})
+        public String contention;
+
+        EmbeddedZooKeeper zookeeper;
+
+        String config;
+
+        DistributedLockFactory factory;
+
+        CuratorFramework client;
+
+        final AtomicInteger threadIndex = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            zookeeper = new EmbeddedZooKeeper();
+            config = zookeeper.start();
+            factory = new DistributedLockFactory();
+            client = CuratorFrameworkFactory.newClient(config, 60000, 15000, new ExponentialBackoffRetry(1000, 3));
+            client.start();
+            client.blockUntilConnected();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            CloseableUtils.closeQuietly(client);
+            factory.close();
+            zookeeper.stop();
+        }
+    }
+
+    /**
+     * 每个线程自己的锁对象
+     */
+    @State(Scope.Thread)
+    public static class Worker {
+
+        private String lockName;
+
+        private Cluster cluster;
+
+        private HierarchicalDistributedLock hierarchicalLock;
+
+        private DistributedReadWriteLock readWriteLock;
+
+        private InterProcessMutex mutex;
+
+        private InterProcessSemaphoreMutex semaphoreMutex;
+
+        private InterProcessReadWriteLock curatorReadWriteLock;
+
+        private InterProcessSemaphoreV2 semaphore;
+
+        @Setup(Level.Trial)
+        public void setUp(Cluster cluster) {
+            this.cluster = cluster;
+            lockName = "high".equals(cluster.contention) ? "bench" : "bench" + cluster.threadIndex.getAndIncrement();
+            String path = "/curator-bench/" + lockName;
+            hierarchicalLock = cluster.factory.getHierarchicalLock(cluster.config, lockName);
+            readWriteLock = cluster.factory.getReadWriteLock(cluster.config, "rw" + lockName);
+            mutex = new InterProcessMutex(cluster.client, path + "/mutex");
+            semaphoreMutex = new InterProcessSemaphoreMutex(cluster.client, path + "/semaphore-mutex");
+            curatorReadWriteLock = new InterProcessReadWriteLock(cluster.client, path + "/rw");
+            semaphore = new InterProcessSemaphoreV2(cluster.client, path + "/semaphore", 1);
+        }
+
+        void lockUnlock() throws Exception {
+            switch (cluster.lockType) {
+                case "DistributedLock":
+                    DistributedLock lock = cluster.factory.newLock(cluster.config, lockName);
+                    lock.lock();
+                    lock.unlock();
+                    break;
+                case "HierarchicalDistributedLock":
+                    hierarchicalLock.lock();
+                    hierarchicalLock.unlock();
+                    break;
+                case "DistributedReadWriteLock.read":
+                    readWriteLock.readLock().lock();
+                    readWriteLock.readLock().unlock();
+                    break;
+                case "InterProcessMutex":
+                    mutex.acquire();
+                    mutex.release();
+                    break;
+                case "InterProcessSemaphoreMutex":
+                    semaphoreMutex.acquire();
+                    semaphoreMutex.release();
+                    break;
+                case "InterProcessReadWriteLock.read":
+                    curatorReadWriteLock.readLock().acquire();
+                    curatorReadWriteLock.readLock().release();
+                    break;
+                case "InterProcessReadWriteLock.write":
+                    curatorReadWriteLock.writeLock().acquire();
+                    curatorReadWriteLock.writeLock().release();
+                    break;
+                case "InterProcessSemaphoreV2":
+                    Lease lease = semaphore.acquire();
+                    semaphore.returnLease(lease);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown lockType: " + cluster.lockType);
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads1(Worker worker) throws Exception {
+        worker.lockUnlock();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads4(Worker worker) throws Exception {
+        worker.lockUnlock();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads16(Worker worker) throws Exception {
+        worker.lockUnlock();
+    }
+}
@@ -0,0 +1,328 @@
+package curator.watcher;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 攒批的PathChildrenCacheListener
+ * PathChildrenCache每个子节点事件回调一次listener(见CuratorWatcherDemo.demo3)，大量服务实例同时注册时会引起回调风暴。
+ * 这里把一段时间(或一定数量)内的事件攒起来，同一个路径上的多次变化合并成一个净变化，
+ * 一批只回调一次BatchListener，下游重建的次数和批数成正比而不是和事件数成正比。
+ * 合并规则：新增后修改还是新增，新增后删除相互抵消，删除后又新增算修改，其余取最后一次。
+ * INITIALIZED事件会马上发出当前这批；连接状态事件不处理。
+ * 回调在自己的单线程里执行，不阻塞main-EventThread
+ */
+public class BatchingPathChildrenCacheListener implements PathChildrenCacheListener, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchingPathChildrenCacheListener.class);
+
+    /**
+     * 净变化的类型
+     */
+    public enum ChangeType {
+        ADDED, UPDATED, REMOVED
+    }
+
+    /**
+     * 一批的回调
+     */
+    public interface BatchListener {
+        /**
+         * @param changes 按路径第一次变化的顺序排列，每个路径最多一项
+         */
+        void childrenChanged(List<ChildChange> changes) throws Exception;
+    }
+
+    private final BatchListener listener;
+
+    /**
+     * 一批的第一个事件到达后最多等多久
+     */
+    private final long windowMillis;
+
+    /**
+     * 一批最多合并多少个路径，到了马上发出
+     */
+    private final int maxBatchSize;
+
+    /**
+     * 正在攒的这批，路径 -> 净变化，用this同步
+     */
+    private Map<String, ChildChange> pending = new LinkedHashMap<String, ChildChange>();
+
+    /**
+     * 正在攒的这批的序号，每取走一批加1，上一批留下的窗口定时任务据此忽略，用this同步
+     */
+    private long batchId;
+
+    /**
+     * 这批的窗口定时任务，还没排时为null
+     */
+    private ScheduledFuture<?> windowTask;
+
+    /**
+     * 已经排了一次马上发送，同一时间最多排一次
+     */
+    private boolean flushQueued;
+
+    private final ScheduledExecutorService executor;
+
+    private final AtomicLong events = new AtomicLong();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final AtomicLong changes = new AtomicLong();
+
+    /**
+     * @param listener     一批的回调
+     * @param windowMillis 一批的第一个事件到达后最多等多久
+     * @param maxBatchSize 一批最多合并多少个路径
+     */
+    public BatchingPathChildrenCacheListener(BatchListener listener, long windowMillis, int maxBatchSize) {
+        if (listener == null || maxBatchSize < 1) {
+            throw new IllegalArgumentException("listener can not be null and maxBatchSize must be positive");
+        }
+        this.listener = listener;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "batching-children-listener");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) {
+        switch (event.getType()) {
+            case CHILD_ADDED:
+                merge(ChangeType.ADDED, event.getData());
+                break;
+            case CHILD_UPDATED:
+                merge(ChangeType.UPDATED, event.getData());
+                break;
+            case CHILD_REMOVED:
+                merge(ChangeType.REMOVED, event.getData());
+                break;
+            case INITIALIZED:
+                //初始数据加载完成，不用等窗口结束
+                flushNow();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 马上发出正在攒的这批
+     */
+    public void flush() {
+        flushNow();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return 收到的子节点事件数
+     */
+    public long getEvents() {
+        return events.get();
+    }
+
+    /**
+     * @return 回调的批数
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * @return 回调的净变化数，比事件数少说明合并了
+     */
+    public long getChanges() {
+        return changes.get();
+    }
+
+    private synchronized void merge(ChangeType type, ChildData data) {
+        events.incrementAndGet();
+        String path = data.getPath();
+        ChildChange previous = pending.get(path);
+        ChangeType merged = previous == null ? type : merge(previous.type, type);
+        if (merged == null) {
+            //新增后又删除，这批里相当于没发生
+            pending.remove(path);
+        } else {
+            pending.put(path, new ChildChange(merged, data, previous == null ? 1 : previous.events + 1));
+        }
+        if (pending.size() >= maxBatchSize) {
+            flushNow();
+        } else if (windowTask == null && !flushQueued && !pending.isEmpty()) {
+            scheduleWindow();
+        }
+    }
+
+    /**
+     * @return 合并后的类型，相互抵消时为null
+     */
+    private static ChangeType merge(ChangeType previous, ChangeType next) {
+        if (previous == ChangeType.ADDED) {
+            return next == ChangeType.REMOVED ? null : ChangeType.ADDED;
+        }
+        if (previous == ChangeType.REMOVED) {
+            //删除后又出现，对下游来说是修改
+            return next == ChangeType.REMOVED ? ChangeType.REMOVED : ChangeType.UPDATED;
+        }
+        return next == ChangeType.REMOVED ? ChangeType.REMOVED : ChangeType.UPDATED;
+    }
+
+    /**
+     * 这批的第一个事件到达后排窗口定时任务，调用方持有this
+     */
+    private void scheduleWindow() {
+        final long id = batchId;
+        try {
+            windowTask = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(id);
+                }
+            }, windowMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //已关闭
+        }
+    }
+
+    /**
+     * 马上发送这批，已经排过的话不重复排，窗口定时任务取消
+     * 否则攒满之后每来一个事件都排一次，后面排的每次只能取到一两个事件
+     */
+    private synchronized void flushNow() {
+        if (flushQueued) {
+            return;
+        }
+        flushQueued = true;
+        cancelWindow();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(-1);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //已关闭
+            flushQueued = false;
+        }
+    }
+
+    /**
+     * 调用方持有this
+     */
+    private void cancelWindow() {
+        if (windowTask != null) {
+            windowTask.cancel(false);
+            windowTask = null;
+        }
+    }
+
+    /**
+     * 取出这批并回调，只在executor线程里执行，批与批之间的顺序不会乱
+     *
+     * @param id 窗口定时任务排的时候那批的序号，马上发送时为-1
+     */
+    private void deliver(long id) {
+        Map<String, ChildChange> batch;
+        synchronized (this) {
+            if (id >= 0 && (id != batchId || flushQueued)) {
+                //上一批的定时任务没取消掉，或者已经排了马上发送
+                return;
+            }
+            if (id < 0) {
+                flushQueued = false;
+            }
+            cancelWindow();
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new LinkedHashMap<String, ChildChange>();
+            batchId++;
+        }
+        List<ChildChange> list = new ArrayList<ChildChange>(batch.values());
+        batches.incrementAndGet();
+        changes.addAndGet(list.size());
+        try {
+            listener.childrenChanged(list);
+        } catch (Exception e) {
+            LOGGER.error("batch listener error: ", e);
+        }
+    }
+
+    /**
+     * 一个子节点在一批里的净变化
+     */
+    public static final class ChildChange {
+
+        private final ChangeType type;
+
+        private final ChildData data;
+
+        private final int events;
+
+        ChildChange(ChangeType type, ChildData data, int events) {
+            this.type = type;
+            this.data = data;
+            this.events = events;
+        }
+
+        public ChangeType getType() {
+            return type;
+        }
+
+        public String getPath() {
+            return data.getPath();
+        }
+
+        /**
+         * @return 最后一次事件里的数据，REMOVED时是删除前的数据
+         */
+        public ChildData getData() {
+            return data;
+        }
+
+        /**
+         * @return 合并了多少个事件
+         */
+        public int getEvents() {
+            return events;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + data.getPath();
+        }
+    }
+}
@@ -7,6 +7,7 @@ import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.List;
 
 public class CuratorWatcherDemo {
@@ -15,7 +16,7 @@ public class CuratorWatcherDemo {
 
     /**
      * 简单watcher demo，只能触发一次
-     * 如果想要多次触发，需要自己实现手动编写反复注册代码
+     * 如果想要多次触发，需要自己实现手动编写反复注册代码，见demo5的RewatchingWatchManager
      */
     private static void demo1() {
         CuratorFramework client = ZKCuratorSimDemo.getRunningConnect(CONNECTION_URL);
@@ -152,6 +153,7 @@ public class CuratorWatcherDemo {
             System.out.println(childData);
         }
 
+        //每个事件回调一次，大量子节点同时变化时可以换成BatchingPathChildrenCacheListener，攒成一批再回调
         childrenCache.getListenable().addListener(new PathChildrenCacheListener() {
             @Override
             public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
@@ -226,10 +228,96 @@ public class CuratorWatcherDemo {
         client.close();
     }
 
+    /**
+     * RewatchingWatchManager : 自动重新注册的原生watcher，不缓存数据，一连串的修改合并成一次回调
+     */
+    private static void demo5() {
+        CuratorFramework client = ZKCuratorSimDemo.getRunningConnect(CONNECTION_URL);
+        final String nodePath = "/access";
+        RewatchingWatchManager watchManager = new RewatchingWatchManager(client, 100);
+        try {
+            watchManager.watchData(nodePath, new RewatchingWatchManager.DataListener() {
+                @Override
+                public void dataChanged(String path, byte[] data, Stat stat) {
+                    System.out.println("节点路径：" + path + "数据：" + (data == null ? "节点不存在" : new String(data)));
+                }
+            });
+            watchManager.watchChildren(nodePath, new RewatchingWatchManager.ChildrenListener() {
+                @Override
+                public void childrenChanged(String path, List<String> children) {
+                    System.out.println("节点路径：" + path + "子节点：" + children);
+                }
+            });
+        } catch (Exception e) {
+            LOGGER.error("watchManager watch error: ", e);
+        }
+
+        //暂停主线程，不退出
+        try {
+            Thread.sleep(300000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        LOGGER.info("triggers: " + watchManager.getTriggers() + ", callbacks: " + watchManager.getCallbacks());
+        watchManager.close();
+        client.close();
+    }
+
+    /**
+     * TreeCacheSnapshotView : TreeCache上的不可变快照，读的时候不加锁
+     */
+    private static void demo6() {
+        CuratorFramework client = ZKCuratorSimDemo.getRunningConnect(CONNECTION_URL);
+        final String nodePath = "/access";
+        TreeCacheSnapshotView view = new TreeCacheSnapshotView(client, nodePath, 50);
+        try {
+            view.start();
+            view.awaitInitialized(5000);
+        } catch (Exception e) {
+            LOGGER.error("snapshot view start error: ", e);
+        }
+
+        //同一个快照上的多次查询看到的是同一时刻的数据
+        for (int i = 0; i < 30; i++) {
+            TreeCacheSnapshotView.Snapshot snapshot = view.snapshot();
+            System.out.println("快照版本：" + snapshot.getVersion() + " 子节点：" + snapshot.getChildren(nodePath));
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        view.close();
+        client.close();
+    }
+
+    /**
+     * PersistentTreeCache : 带本地快照文件的缓存，重启时先用文件里的数据，再和zookeeper对账
+     */
+    private static void demo7() {
+        CuratorFramework client = ZKCuratorSimDemo.getRunningConnect(CONNECTION_URL);
+        final String nodePath = "/access";
+        PersistentTreeCache cache = new PersistentTreeCache(client, nodePath, new File("access.snapshot"), 30000, 50);
+        cache.start();
+        //文件里有数据时马上就能读，对账完成前isInitialized()为false
+        System.out.println("从文件载入：" + cache.getLoaded() + " 子节点：" + cache.snapshot().getChildren(nodePath));
+        try {
+            cache.awaitInitialized(5000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        System.out.println("对账完成，重新读取：" + cache.getFetched() + " 没变：" + cache.getUnchanged());
+        cache.close();
+        client.close();
+    }
+
     public static void main(String[] args) {
         demo1();
         //demo2();
         //demo3();
         //demo4();
+        //demo5();
+        //demo6();
+        //demo7();
     }
 }
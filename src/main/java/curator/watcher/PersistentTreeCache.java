@@ -0,0 +1,753 @@
+package curator.watcher;
+
+import curator.watcher.TreeCacheSnapshotView.Snapshot;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.CuratorEventType;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 带本地快照文件的子树缓存，用于快速启动
+ * TreeCache/PathChildrenCache启动时要从网络上读完整个子树才INITIALIZED，子树大时要几十秒，
+ * 所有服务一起重启时还会压垮zookeeper。
+ * 这里定期把子树写到本地文件，启动时先mmap读入文件马上发布一个快照(isInitialized()为false)，服务立即可用；
+ * 然后和zookeeper对账：逐个节点getChildren(同时拿到节点的Stat)，mzxid和version都没变的节点不再读数据，
+ * 只对变了的和新增的节点getData，文件里有但已经不存在的节点删掉，全部对完后发布isInitialized()为true的快照。
+ * 对账时同时注册watcher，之后的变化增量更新；session过期后重新对账一遍。
+ * 快照类型和TreeCacheSnapshotView相同，读的时候不加锁
+ */
+public class PersistentTreeCache implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistentTreeCache.class);
+
+    /**
+     * 文件头 "ZKSN"
+     */
+    private static final int MAGIC = 0x5A4B534E;
+
+    /**
+     * 2: 文件末尾加了CRC32
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * 后台请求失败(比如Curator重试完还是ConnectionLoss)后的重试间隔
+     */
+    private static final long RETRY_MILLIS = 1000;
+
+    private final CuratorFramework client;
+
+    private final String root;
+
+    private final File snapshotFile;
+
+    /**
+     * 写快照文件的间隔
+     */
+    private final long persistIntervalMillis;
+
+    /**
+     * 变化后等多久发布快照，这段时间里的变化合成一批
+     */
+    private final long batchMillis;
+
+    /**
+     * 路径 -> 节点，只在zookeeper事件线程里修改，发布时复制，都用this同步
+     */
+    private final Map<String, ChildData> nodes = new HashMap<String, ChildData>();
+
+    /**
+     * 路径 -> 子节点名
+     */
+    private final Map<String, Set<String>> children = new HashMap<String, Set<String>>();
+
+    private final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>(Snapshot.EMPTY);
+
+    /**
+     * 还没有返回的后台请求数(包括等待重试的)，对账时降到0说明对完了
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    private final AtomicBoolean publishPending = new AtomicBoolean();
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * 从文件载入的节点数
+     */
+    private final AtomicLong loaded = new AtomicLong();
+
+    /**
+     * 对账和更新时重新读取数据的节点数
+     */
+    private final AtomicLong fetched = new AtomicLong();
+
+    /**
+     * 对账时没变、不用读数据的节点数
+     */
+    private final AtomicLong unchanged = new AtomicLong();
+
+    private volatile boolean initialized;
+
+    /**
+     * session过期过，重连后要重新对账
+     */
+    private volatile boolean lost;
+
+    private volatile boolean closed;
+
+    /**
+     * 已发布快照的序号，用this同步
+     */
+    private long version;
+
+    /**
+     * 最后写入文件的快照序号，只在executor线程里读写
+     */
+    private long persistedVersion = -1;
+
+    private final Watcher watcher = new Watcher() {
+        @Override
+        public void process(WatchedEvent event) {
+            if (closed || event.getPath() == null) {
+                return;
+            }
+            String path = event.getPath();
+            switch (event.getType()) {
+                case NodeDataChanged:
+                    fetchData(path);
+                    break;
+                case NodeChildrenChanged:
+                    refresh(path, false);
+                    break;
+                case NodeDeleted:
+                    remove(path);
+                    if (root.equals(path)) {
+                        //等根节点重新创建
+                        watchExists(path);
+                    }
+                    break;
+                case NodeCreated:
+                    refresh(path, true);
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    private final BackgroundCallback callback = new BackgroundCallback() {
+        @Override
+        public void processResult(CuratorFramework client, CuratorEvent event) {
+            try {
+                if (!closed) {
+                    switch (event.getType()) {
+                        case CHILDREN:
+                            onChildren(event);
+                            break;
+                        case GET_DATA:
+                            onData(event);
+                            break;
+                        case EXISTS:
+                            onExists(event);
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } finally {
+                completed();
+            }
+        }
+    };
+
+    private final ConnectionStateListener connectionStateListener = new ConnectionStateListener() {
+        @Override
+        public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            if (newState == ConnectionState.LOST) {
+                lost = true;
+            } else if (newState == ConnectionState.RECONNECTED && lost) {
+                //watcher随session丢了，重新对账，没变的节点不会重新读数据
+                lost = false;
+                refresh(root, true);
+            }
+            schedulePublish();
+        }
+    };
+
+    /**
+     * @param client                已启动的curator客户端
+     * @param root                  缓存的子树根路径
+     * @param snapshotFile          本地快照文件
+     * @param persistIntervalMillis 写快照文件的间隔
+     * @param batchMillis           变化后等多久发布快照
+     */
+    public PersistentTreeCache(CuratorFramework client, String root, File snapshotFile,
+                               long persistIntervalMillis, long batchMillis) {
+        this.client = client;
+        this.root = root;
+        this.snapshotFile = snapshotFile;
+        this.persistIntervalMillis = persistIntervalMillis;
+        this.batchMillis = batchMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "persistent-tree-cache-" + PersistentTreeCache.this.root);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 载入快照文件并马上发布，然后在后台和zookeeper对账
+     */
+    public void start() {
+        int count = load();
+        loaded.set(count);
+        LOGGER.info("loaded " + count + " nodes of " + root + " from " + snapshotFile);
+        //马上发布文件里的数据，不等对账
+        publish();
+        client.getConnectionStateListenable().addListener(connectionStateListener);
+        refresh(root, true);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                persist();
+            }
+        }, persistIntervalMillis, persistIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return 当前快照，对账完成前可能是快照文件里的旧数据
+     */
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    /**
+     * 等待和zookeeper对账完成
+     *
+     * @param timeoutMillis
+     * @return 是否已经对账完成
+     * @throws InterruptedException
+     */
+    public boolean awaitInitialized(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!current.get().isInitialized()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * @return 从快照文件载入的节点数
+     */
+    public long getLoaded() {
+        return loaded.get();
+    }
+
+    /**
+     * @return 重新读取数据的次数
+     */
+    public long getFetched() {
+        return fetched.get();
+    }
+
+    /**
+     * @return 对账时没变、没有重新读取数据的节点数
+     */
+    public long getUnchanged() {
+        return unchanged.get();
+    }
+
+    /**
+     * 写快照文件，并停止更新
+     */
+    @Override
+    public void close() {
+        closed = true;
+        client.getConnectionStateListenable().removeListener(connectionStateListener);
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    publish();
+                    persist();
+                }
+            }).get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            LOGGER.warn("persist " + snapshotFile + " on close error: ", e);
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * 读子节点列表和节点的Stat，注册子节点watcher
+     *
+     * @param path
+     * @param deep 是否对所有子节点也对账，false时只处理新增的子节点
+     */
+    private void refresh(String path, boolean deep) {
+        outstanding.incrementAndGet();
+        try {
+            client.getChildren().usingWatcher(watcher).inBackground(callback, deep).forPath(path);
+        } catch (Exception e) {
+            failed(CuratorEventType.CHILDREN, path, deep, e);
+        }
+    }
+
+    /**
+     * 读数据，注册数据watcher
+     */
+    private void fetchData(String path) {
+        outstanding.incrementAndGet();
+        fetched.incrementAndGet();
+        try {
+            client.getData().usingWatcher(watcher).inBackground(callback).forPath(path);
+        } catch (Exception e) {
+            failed(CuratorEventType.GET_DATA, path, false, e);
+        }
+    }
+
+    /**
+     * 不读数据，只注册数据watcher(节点不存在时等节点创建)
+     */
+    private void watchExists(String path) {
+        outstanding.incrementAndGet();
+        try {
+            client.checkExists().usingWatcher(watcher).inBackground(callback).forPath(path);
+        } catch (Exception e) {
+            failed(CuratorEventType.EXISTS, path, false, e);
+        }
+    }
+
+    private void failed(CuratorEventType type, String path, boolean deep, Exception e) {
+        LOGGER.warn(type + " " + path + " error: ", e);
+        retryLater(type, path, deep);
+        completed();
+    }
+
+    /**
+     * 请求失败时watcher也没有注册上，隔一会儿重新发同一个请求，否则这个路径再也不会更新。
+     * 重试本身也算一个未完成的请求，重试成功前不会标记对账完成
+     *
+     * @param type CHILDREN、GET_DATA或EXISTS
+     * @param path
+     * @param deep CHILDREN时是否对所有子节点对账
+     */
+    private void retryLater(final CuratorEventType type, final String path, final boolean deep) {
+        if (closed) {
+            return;
+        }
+        outstanding.incrementAndGet();
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (closed) {
+                            return;
+                        }
+                        switch (type) {
+                            case CHILDREN:
+                                refresh(path, deep);
+                                break;
+                            case GET_DATA:
+                                fetchData(path);
+                                break;
+                            default:
+                                watchExists(path);
+                                break;
+                        }
+                    } finally {
+                        completed();
+                    }
+                }
+            }, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //已关闭
+            completed();
+        }
+    }
+
+    private void completed() {
+        if (outstanding.decrementAndGet() == 0 && !initialized) {
+            initialized = true;
+            LOGGER.info("cache of " + root + " reconciled: " + fetched.get() + " fetched, " + unchanged.get() + " unchanged");
+        }
+        schedulePublish();
+    }
+
+    private void onChildren(CuratorEvent event) {
+        String path = event.getPath();
+        if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+            remove(path);
+            if (root.equals(path)) {
+                watchExists(path);
+            }
+            return;
+        }
+        boolean deep = Boolean.TRUE.equals(event.getContext());
+        if (event.getResultCode() != KeeperException.Code.OK.intValue()) {
+            LOGGER.warn("getChildren " + path + " error: " + KeeperException.Code.get(event.getResultCode()) + ", retry later");
+            retryLater(CuratorEventType.CHILDREN, path, deep);
+            return;
+        }
+        Stat stat = event.getStat();
+        List<String> names = event.getChildren();
+        boolean changed;
+        Set<String> old;
+        synchronized (this) {
+            ChildData cached = nodes.get(path);
+            changed = cached == null || stat == null || cached.getStat() == null
+                    || cached.getStat().getMzxid() != stat.getMzxid() || cached.getStat().getVersion() != stat.getVersion();
+            if (!changed) {
+                //数据没变，更新Stat(子节点相关的字段可能变了)
+                nodes.put(path, new ChildData(path, stat, cached.getData()));
+            }
+            Set<String> previous = children.put(path, new TreeSet<String>(names));
+            old = previous == null ? Collections.<String>emptySet() : previous;
+        }
+        if (changed) {
+            fetchData(path);
+        } else {
+            if (deep) {
+                unchanged.incrementAndGet();
+            }
+            watchExists(path);
+        }
+        Set<String> current = new HashSet<String>(names);
+        for (String name : old) {
+            if (!current.contains(name)) {
+                remove(ZKPaths.makePath(path, name));
+            }
+        }
+        for (String name : names) {
+            if (deep || !old.contains(name)) {
+                refresh(ZKPaths.makePath(path, name), true);
+            }
+        }
+    }
+
+    private void onData(CuratorEvent event) {
+        String path = event.getPath();
+        if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+            remove(path);
+            return;
+        }
+        if (event.getResultCode() != KeeperException.Code.OK.intValue()) {
+            LOGGER.warn("getData " + path + " error: " + KeeperException.Code.get(event.getResultCode()) + ", retry later");
+            retryLater(CuratorEventType.GET_DATA, path, false);
+            return;
+        }
+        synchronized (this) {
+            nodes.put(path, new ChildData(path, event.getStat(), event.getData()));
+            link(path);
+        }
+    }
+
+    private void onExists(CuratorEvent event) {
+        String path = event.getPath();
+        if (event.getResultCode() != KeeperException.Code.OK.intValue()
+                && event.getResultCode() != KeeperException.Code.NONODE.intValue()) {
+            //出错时Stat也是null，不能当作节点已删除
+            LOGGER.warn("checkExists " + path + " error: " + KeeperException.Code.get(event.getResultCode()) + ", retry later");
+            retryLater(CuratorEventType.EXISTS, path, false);
+            return;
+        }
+        Stat stat = event.getStat();
+        if (stat == null) {
+            if (!root.equals(path)) {
+                remove(path);
+            }
+            return;
+        }
+        ChildData cached;
+        synchronized (this) {
+            cached = nodes.get(path);
+        }
+        if (cached == null) {
+            //根节点刚创建
+            if (root.equals(path)) {
+                refresh(path, true);
+            }
+        } else if (cached.getStat() == null || cached.getStat().getMzxid() != stat.getMzxid()) {
+            //getChildren和exists之间数据变了
+            fetchData(path);
+        }
+    }
+
+    /**
+     * 删除节点和它的子孙
+     */
+    private synchronized void remove(String path) {
+        nodes.remove(path);
+        Set<String> names = children.remove(path);
+        if (names != null) {
+            for (String name : names) {
+                remove(ZKPaths.makePath(path, name));
+            }
+        }
+        if (!root.equals(path)) {
+            ZKPaths.PathAndNode pathAndNode = ZKPaths.getPathAndNode(path);
+            Set<String> siblings = children.get(pathAndNode.getPath());
+            if (siblings != null) {
+                siblings.remove(pathAndNode.getNode());
+            }
+        }
+    }
+
+    /**
+     * 把节点挂到父节点的子节点列表里，调用方持有this
+     */
+    private void link(String path) {
+        if (root.equals(path)) {
+            return;
+        }
+        ZKPaths.PathAndNode pathAndNode = ZKPaths.getPathAndNode(path);
+        Set<String> siblings = children.get(pathAndNode.getPath());
+        if (siblings == null) {
+            siblings = new TreeSet<String>();
+            children.put(pathAndNode.getPath(), siblings);
+        }
+        siblings.add(pathAndNode.getNode());
+    }
+
+    private void schedulePublish() {
+        if (closed || !publishPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    publishPending.set(false);
+                    publish();
+                }
+            }, batchMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            publishPending.set(false);
+        }
+    }
+
+    /**
+     * 复制当前数据，发布新快照
+     */
+    private synchronized void publish() {
+        Map<String, ChildData> nodesCopy = new HashMap<String, ChildData>(nodes);
+        Map<String, List<String>> childrenCopy = new HashMap<String, List<String>>(nodes.size() * 2);
+        for (String path : nodes.keySet()) {
+            Set<String> names = children.get(path);
+            childrenCopy.put(path, names == null ? Collections.<String>emptyList()
+                    : Collections.unmodifiableList(new ArrayList<String>(names)));
+        }
+        current.set(new Snapshot(nodesCopy, childrenCopy, ++version, initialized,
+                client.getZookeeperClient().isConnected()));
+    }
+
+    /**
+     * 对账完成并且有变化时写文件：先写临时文件再改名，写到一半宕机也不会留下坏文件。只在executor线程里执行
+     */
+    private void persist() {
+        Snapshot snapshot = current.get();
+        if (!snapshot.isInitialized() || snapshot.getVersion() == persistedVersion) {
+            return;
+        }
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        CheckedOutputStream checked = null;
+        try (DataOutputStream out = new DataOutputStream(checked = new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)), new CRC32()))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, root);
+            out.writeInt(snapshot.size());
+            for (ChildData node : snapshot.nodes()) {
+                writeString(out, node.getPath());
+                Stat stat = node.getStat();
+                out.writeLong(stat.getCzxid());
+                out.writeLong(stat.getMzxid());
+                out.writeLong(stat.getCtime());
+                out.writeLong(stat.getMtime());
+                out.writeInt(stat.getVersion());
+                out.writeInt(stat.getCversion());
+                out.writeInt(stat.getAversion());
+                out.writeLong(stat.getEphemeralOwner());
+                out.writeInt(stat.getDataLength());
+                out.writeInt(stat.getNumChildren());
+                out.writeLong(stat.getPzxid());
+                byte[] data = node.getData();
+                out.writeInt(data == null ? -1 : data.length);
+                if (data != null) {
+                    out.write(data);
+                }
+            }
+            //前面所有字节的校验和，长度字段以外的损坏(比如数据里的一个字节)也能发现
+            out.writeLong(checked.getChecksum().getValue());
+        } catch (IOException e) {
+            LOGGER.warn("write " + tmp + " error: ", e);
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            persistedVersion = snapshot.getVersion();
+            LOGGER.debug("persisted " + snapshot.size() + " nodes of " + root + " to " + snapshotFile);
+        } catch (IOException e) {
+            LOGGER.warn("rename " + tmp + " to " + snapshotFile + " error: ", e);
+        }
+    }
+
+    /**
+     * mmap读入快照文件，文件不存在、格式不对、内容损坏或者不是同一个根路径时忽略，当作冷启动
+     *
+     * @return 载入的节点数
+     */
+    private int load() {
+        if (!snapshotFile.isFile()) {
+            return 0;
+        }
+        Map<String, ChildData> loadedNodes = new HashMap<String, ChildData>();
+        try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                LOGGER.warn(snapshotFile + " is not a cache snapshot, ignore it");
+                return 0;
+            }
+            //去掉末尾的校验和再解析
+            int end = buffer.limit() - 8;
+            if (end < buffer.position()) {
+                throw new BufferUnderflowException();
+            }
+            ByteBuffer body = buffer.duplicate();
+            //转成Buffer再调用，高版本JDK编译后在Java 8上也能运行
+            ((Buffer) body).position(0);
+            ((Buffer) body).limit(end);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if (crc.getValue() != buffer.getLong(end)) {
+                throw new IOException("checksum mismatch");
+            }
+            String fileRoot = readString(buffer);
+            if (!root.equals(fileRoot)) {
+                LOGGER.warn(snapshotFile + " is a snapshot of " + fileRoot + ", not " + root + ", ignore it");
+                return 0;
+            }
+            int count = buffer.getInt();
+            if (count < 0) {
+                throw new IOException("corrupt node count " + count);
+            }
+            String prefix = root.endsWith("/") ? root : root + "/";
+            for (int i = 0; i < count; i++) {
+                String path = readString(buffer);
+                if (!root.equals(path) && !path.startsWith(prefix)) {
+                    throw new IOException("corrupt path " + path);
+                }
+                Stat stat = new Stat(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong(),
+                        buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getLong(),
+                        buffer.getInt(), buffer.getInt(), buffer.getLong());
+                int length = buffer.getInt();
+                byte[] data = null;
+                if (length != -1) {
+                    data = new byte[checkLength(length, buffer)];
+                    buffer.get(data);
+                }
+                loadedNodes.put(path, new ChildData(path, stat, data));
+            }
+            if (buffer.position() != end) {
+                throw new IOException("node count " + count + " does not match file size");
+            }
+        } catch (IOException e) {
+            LOGGER.warn("read " + snapshotFile + " error, ignore it: ", e);
+            return 0;
+        } catch (BufferUnderflowException e) {
+            LOGGER.warn(snapshotFile + " is truncated, ignore it");
+            return 0;
+        } catch (RuntimeException e) {
+            //比如路径不合法，ChildData校验失败
+            LOGGER.warn(snapshotFile + " is corrupt, ignore it: ", e);
+            return 0;
+        }
+        synchronized (this) {
+            nodes.putAll(loadedNodes);
+            for (String path : loadedNodes.keySet()) {
+                link(path);
+            }
+        }
+        return loadedNodes.size();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[checkLength(buffer.getInt(), buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 分配数组前检查长度，损坏的长度不能导致NegativeArraySizeException或者分配超大的数组
+     *
+     * @param length 文件里记录的长度
+     * @param buffer
+     * @return 合法的长度
+     * @throws IOException 长度为负数或者超过剩余的字节数
+     */
+    private static int checkLength(int length, MappedByteBuffer buffer) throws IOException {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("corrupt length " + length + " at " + buffer.position() + ", " + buffer.remaining() + " bytes left");
+        }
+        return length;
+    }
+}
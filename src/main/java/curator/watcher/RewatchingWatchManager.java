@@ -0,0 +1,367 @@
+package curator.watcher;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 自动重复注册的watcher管理器
+ * zookeeper的watcher只触发一次(见CuratorWatcherDemo.demo1)，这里在每次触发后重新getData/getChildren并注册watcher。
+ * 重新注册用的是读操作本身，读到的就是注册时刻的最新数据，触发和重新注册之间发生的修改不会丢；
+ * 用mzxid(数据)/pzxid(子节点)判断是否真的变了，没变不回调。
+ * 触发后等debounceMillis再重新注册，这段时间里watcher已经失效，一连串的修改只会产生一次回调。
+ * 和TreeCache相比，每个路径只保存一个zxid，不缓存数据。
+ * session过期后watcher会丢失，重连后所有路径重新注册一次。
+ * 回调在管理器自己的单线程里执行，不阻塞zookeeper的事件线程
+ */
+public class RewatchingWatchManager implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RewatchingWatchManager.class);
+
+    /**
+     * 重新注册失败(比如连接断开)后的重试间隔
+     */
+    private static final long RETRY_MILLIS = 1000;
+
+    private final CuratorFramework client;
+
+    /**
+     * 触发后等待多久再重新注册
+     */
+    private final long debounceMillis;
+
+    /**
+     * 路径 -> 数据watcher
+     */
+    private final ConcurrentMap<String, WatchEntry> dataWatches = new ConcurrentHashMap<String, WatchEntry>();
+
+    /**
+     * 路径 -> 子节点watcher
+     */
+    private final ConcurrentMap<String, WatchEntry> childrenWatches = new ConcurrentHashMap<String, WatchEntry>();
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * executor的线程，注册和回调都在这个线程里按顺序执行
+     */
+    private volatile Thread executorThread;
+
+    /**
+     * session过期过，重连后要重新注册
+     */
+    private volatile boolean lost;
+
+    private final ConnectionStateListener connectionStateListener = new ConnectionStateListener() {
+        @Override
+        public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            //session没过期时客户端重连后会自动恢复watcher，不用重新读；
+            //过期后全部丢失，重新注册一遍，中间的变化通过zxid补回来
+            if (newState == ConnectionState.LOST) {
+                lost = true;
+            } else if (newState == ConnectionState.RECONNECTED && lost) {
+                lost = false;
+                for (WatchEntry entry : dataWatches.values()) {
+                    entry.schedule(0);
+                }
+                for (WatchEntry entry : childrenWatches.values()) {
+                    entry.schedule(0);
+                }
+            }
+        }
+    };
+
+    private final AtomicLong triggers = new AtomicLong();
+
+    private final AtomicLong rearms = new AtomicLong();
+
+    private final AtomicLong callbacks = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /**
+     * @param client         已启动的curator客户端
+     * @param debounceMillis 触发后等待多久再重新注册，这段时间里的多次修改合并成一次回调，0表示马上重新注册
+     */
+    public RewatchingWatchManager(CuratorFramework client, long debounceMillis) {
+        this.client = client;
+        this.debounceMillis = debounceMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rewatching-watch-manager");
+                thread.setDaemon(true);
+                executorThread = thread;
+                return thread;
+            }
+        });
+        client.getConnectionStateListenable().addListener(connectionStateListener);
+    }
+
+    /**
+     * 监听节点数据，注册时回调一次当前数据，之后每次变化回调
+     *
+     * @param path     节点路径，节点可以还不存在
+     * @param listener
+     * @throws Exception 第一次注册失败
+     */
+    public void watchData(String path, DataListener listener) throws Exception {
+        register(dataWatches, new WatchEntry(path, listener, null));
+    }
+
+    /**
+     * 监听子节点列表，注册时回调一次当前列表，之后每次增删子节点回调
+     *
+     * @param path     父节点路径，节点可以还不存在
+     * @param listener
+     * @throws Exception 第一次注册失败
+     */
+    public void watchChildren(String path, ChildrenListener listener) throws Exception {
+        register(childrenWatches, new WatchEntry(path, null, listener));
+    }
+
+    /**
+     * 取消路径上的数据和子节点监听，已经注册到服务端的watcher下次触发时忽略
+     *
+     * @param path
+     */
+    public void unwatch(String path) {
+        WatchEntry entry = dataWatches.remove(path);
+        if (entry != null) {
+            entry.cancelled = true;
+        }
+        entry = childrenWatches.remove(path);
+        if (entry != null) {
+            entry.cancelled = true;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        client.getConnectionStateListenable().removeListener(connectionStateListener);
+        for (WatchEntry entry : dataWatches.values()) {
+            entry.cancelled = true;
+        }
+        for (WatchEntry entry : childrenWatches.values()) {
+            entry.cancelled = true;
+        }
+        dataWatches.clear();
+        childrenWatches.clear();
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return 服务端触发watcher的次数
+     */
+    public long getTriggers() {
+        return triggers.get();
+    }
+
+    /**
+     * @return 重新注册的次数，比触发次数少说明合并了
+     */
+    public long getRearms() {
+        return rearms.get();
+    }
+
+    /**
+     * @return 回调的次数
+     */
+    public long getCallbacks() {
+        return callbacks.get();
+    }
+
+    private void register(ConcurrentMap<String, WatchEntry> watches, final WatchEntry entry) throws Exception {
+        if (closed) {
+            throw new IllegalStateException("watch manager is closed");
+        }
+        WatchEntry exist = watches.put(entry.path, entry);
+        if (exist != null) {
+            exist.cancelled = true;
+        }
+        try {
+            if (Thread.currentThread() == executorThread) {
+                //在回调里注册
+                entry.arm();
+            } else {
+                //和之后的重新注册在同一个线程里执行，回调的顺序和读到的顺序一致
+                executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        entry.arm();
+                        return null;
+                    }
+                }).get();
+            }
+        } catch (ExecutionException e) {
+            watches.remove(entry.path, entry);
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (Exception e) {
+            watches.remove(entry.path, entry);
+            throw e;
+        }
+    }
+
+    /**
+     * 节点数据变化的回调
+     */
+    public interface DataListener {
+        /**
+         * @param path
+         * @param data 节点已删除或不存在时为null
+         * @param stat 节点已删除或不存在时为null
+         */
+        void dataChanged(String path, byte[] data, Stat stat) throws Exception;
+    }
+
+    /**
+     * 子节点列表变化的回调
+     */
+    public interface ChildrenListener {
+        /**
+         * @param path
+         * @param children 父节点已删除或不存在时为null
+         */
+        void childrenChanged(String path, List<String> children) throws Exception;
+    }
+
+    /**
+     * 一个路径上的监听，本身就是注册到服务端的watcher，同一个对象重复注册时服务端只保留一个
+     */
+    private class WatchEntry implements CuratorWatcher {
+
+        private final String path;
+
+        private final DataListener dataListener;
+
+        private final ChildrenListener childrenListener;
+
+        /**
+         * 已经有一次重新注册在排队
+         */
+        private final AtomicBoolean pending = new AtomicBoolean();
+
+        /**
+         * 上次回调时的mzxid或pzxid，节点不存在时为0，还没回调过时为-1，只在executor线程里读写
+         */
+        private long lastZxid = -1;
+
+        private volatile boolean cancelled;
+
+        WatchEntry(String path, DataListener dataListener, ChildrenListener childrenListener) {
+            this.path = path;
+            this.dataListener = dataListener;
+            this.childrenListener = childrenListener;
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            //连接状态的事件由connectionStateListener处理
+            if (cancelled || event.getType() == Watcher.Event.EventType.None) {
+                return;
+            }
+            triggers.incrementAndGet();
+            schedule(debounceMillis);
+        }
+
+        /**
+         * 排一次重新注册，已经在排队的话不重复排
+         *
+         * @param delayMillis
+         */
+        void schedule(long delayMillis) {
+            if (cancelled || !pending.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        //先清掉标记再读，读的过程中触发的watcher会再排一次
+                        pending.set(false);
+                        if (cancelled) {
+                            return;
+                        }
+                        try {
+                            arm();
+                        } catch (Exception e) {
+                            LOGGER.warn("rewatch " + path + " failed, retry in " + RETRY_MILLIS + "ms: " + e);
+                            schedule(RETRY_MILLIS);
+                        }
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                //管理器已关闭
+                pending.set(false);
+            }
+        }
+
+        /**
+         * 读取当前数据并注册watcher，zxid变了就回调，只在executor线程里执行
+         */
+        void arm() throws Exception {
+            rearms.incrementAndGet();
+            Stat stat = new Stat();
+            byte[] data = null;
+            List<String> children = null;
+            boolean exists = true;
+            try {
+                if (dataListener != null) {
+                    data = client.getData().storingStatIn(stat).usingWatcher(this).forPath(path);
+                } else {
+                    children = client.getChildren().storingStatIn(stat).usingWatcher(this).forPath(path);
+                }
+            } catch (KeeperException.NoNodeException e) {
+                exists = false;
+            }
+            if (!exists) {
+                //节点不存在时用exists注册，节点创建时触发；注册前节点刚好被创建的话，重新读一次
+                if (client.checkExists().usingWatcher(this).forPath(path) != null) {
+                    schedule(0);
+                    return;
+                }
+            }
+            long zxid = exists ? (dataListener != null ? stat.getMzxid() : stat.getPzxid()) : 0;
+            dispatch(zxid, exists ? data : null, exists ? stat : null, children);
+        }
+
+        private void dispatch(long zxid, byte[] data, Stat stat, List<String> children) {
+            if (cancelled || zxid == lastZxid) {
+                return;
+            }
+            lastZxid = zxid;
+            callbacks.incrementAndGet();
+            try {
+                if (dataListener != null) {
+                    dataListener.dataChanged(path, data, stat);
+                } else {
+                    childrenListener.childrenChanged(path, children);
+                }
+            } catch (Exception e) {
+                LOGGER.error("watch listener of " + path + " error: ", e);
+            }
+        }
+    }
+}
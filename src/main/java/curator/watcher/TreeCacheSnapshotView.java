@@ -0,0 +1,368 @@
+package curator.watcher;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.TreeCache;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.framework.recipes.cache.TreeCacheListener;
+import org.apache.curator.utils.ZKPaths;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 基于TreeCache的只读配置视图
+ * TreeCache的getCurrentData/getCurrentChildren每次都要逐层查内部的并发map，还会复制子节点列表。
+ * 这里把TreeCache的事件攒成一批，在上一个快照的基础上应用这批事件，生成一个新的不可变快照，
+ * 建好路径->数据和路径->子节点的索引，再用一次AtomicReference.set发布。
+ * 读的一方拿到的是某个时刻完整一致的子树，查询只是普通的HashMap读，不加锁，不分配对象
+ */
+public class TreeCacheSnapshotView implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TreeCacheSnapshotView.class);
+
+    private final String root;
+
+    /**
+     * 第一个事件到达后等多久再生成快照，这段时间里的事件合成一批
+     */
+    private final long batchMillis;
+
+    private final TreeCache treeCache;
+
+    /**
+     * 当前发布的快照
+     */
+    private final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>(Snapshot.EMPTY);
+
+    /**
+     * 还没有应用到快照里的事件
+     */
+    private final ConcurrentLinkedQueue<TreeCacheEvent> events = new ConcurrentLinkedQueue<TreeCacheEvent>();
+
+    /**
+     * 已经有一次生成快照在排队
+     */
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * 发布快照的次数
+     */
+    private final AtomicLong swaps = new AtomicLong();
+
+    /**
+     * 应用的事件数
+     */
+    private final AtomicLong applied = new AtomicLong();
+
+    /**
+     * @param client      已启动的curator客户端
+     * @param root        监听的子树根路径
+     * @param batchMillis 攒批的时间，0表示处理完当前排队的事件就发布
+     */
+    public TreeCacheSnapshotView(CuratorFramework client, String root, long batchMillis) {
+        this.root = root;
+        this.batchMillis = batchMillis;
+        this.treeCache = TreeCache.newBuilder(client, root).setCacheData(true).build();
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "tree-cache-snapshot-" + TreeCacheSnapshotView.this.root);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        treeCache.getListenable().addListener(new TreeCacheListener() {
+            @Override
+            public void childEvent(CuratorFramework client, TreeCacheEvent event) {
+                events.add(event);
+                schedule();
+            }
+        });
+    }
+
+    /**
+     * 启动TreeCache，初始数据加载完成后会发布一个initialized的快照
+     *
+     * @throws Exception
+     */
+    public void start() throws Exception {
+        treeCache.start();
+    }
+
+    /**
+     * 等待初始数据加载完成
+     *
+     * @param timeoutMillis
+     * @return 是否已经加载完成
+     * @throws InterruptedException
+     */
+    public boolean awaitInitialized(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!current.get().isInitialized()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * @return 当前快照，同一个快照上的多次查询看到的是同一时刻的数据
+     */
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    /**
+     * @return 发布快照的次数，比事件数少说明合并了
+     */
+    public long getSwaps() {
+        return swaps.get();
+    }
+
+    /**
+     * @return 已经应用到快照里的事件数
+     */
+    public long getApplied() {
+        return applied.get();
+    }
+
+    @Override
+    public void close() {
+        treeCache.close();
+        executor.shutdownNow();
+    }
+
+    private void schedule() {
+        if (!pending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    //先清掉标记再取事件，取的过程中到达的事件会再排一次
+                    pending.set(false);
+                    publish();
+                }
+            }, batchMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //已关闭
+            pending.set(false);
+        }
+    }
+
+    /**
+     * 把排队的事件应用到上一个快照的副本上，发布新快照，只在executor线程里执行
+     */
+    private void publish() {
+        Snapshot previous = current.get();
+        Map<String, ChildData> nodes = null;
+        boolean initialized = previous.initialized;
+        boolean connected = previous.connected;
+        int count = 0;
+        TreeCacheEvent event;
+        while ((event = events.poll()) != null) {
+            count++;
+            switch (event.getType()) {
+                case NODE_ADDED:
+                case NODE_UPDATED:
+                    if (nodes == null) {
+                        nodes = new HashMap<String, ChildData>(previous.nodes);
+                    }
+                    nodes.put(event.getData().getPath(), event.getData());
+                    break;
+                case NODE_REMOVED:
+                    if (nodes == null) {
+                        nodes = new HashMap<String, ChildData>(previous.nodes);
+                    }
+                    removeSubtree(nodes, event.getData().getPath());
+                    break;
+                case INITIALIZED:
+                    //能加载完初始数据说明是连着的
+                    initialized = true;
+                    connected = true;
+                    break;
+                case CONNECTION_SUSPENDED:
+                case CONNECTION_LOST:
+                    connected = false;
+                    break;
+                case CONNECTION_RECONNECTED:
+                    connected = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        applied.addAndGet(count);
+        if (nodes == null && initialized == previous.initialized && connected == previous.connected) {
+            return;
+        }
+        Snapshot snapshot = nodes == null
+                ? new Snapshot(previous.nodes, previous.children, previous.version + 1, initialized, connected)
+                : new Snapshot(nodes, indexChildren(nodes), previous.version + 1, initialized, connected);
+        current.set(snapshot);
+        swaps.incrementAndGet();
+        LOGGER.debug("snapshot of " + root + " v" + snapshot.version + ": " + count + " events, " + snapshot.size() + " nodes");
+    }
+
+    private static void removeSubtree(Map<String, ChildData> nodes, String path) {
+        nodes.remove(path);
+        //TreeCache会给每个子孙节点单独发NODE_REMOVED，这里防止漏掉
+        String prefix = path.endsWith("/") ? path : path + "/";
+        List<String> descendants = new ArrayList<String>();
+        for (String node : nodes.keySet()) {
+            if (node.startsWith(prefix)) {
+                descendants.add(node);
+            }
+        }
+        for (String descendant : descendants) {
+            nodes.remove(descendant);
+        }
+    }
+
+    /**
+     * 建路径->排好序的子节点名索引，每个节点都有一项，叶子节点是空列表
+     */
+    private static Map<String, List<String>> indexChildren(Map<String, ChildData> nodes) {
+        Map<String, List<String>> children = new HashMap<String, List<String>>();
+        for (String path : nodes.keySet()) {
+            if (!children.containsKey(path)) {
+                children.put(path, new ArrayList<String>());
+            }
+            if ("/".equals(path)) {
+                continue;
+            }
+            String parent = ZKPaths.getPathAndNode(path).getPath();
+            if (nodes.containsKey(parent)) {
+                List<String> siblings = children.get(parent);
+                if (siblings == null) {
+                    siblings = new ArrayList<String>();
+                    children.put(parent, siblings);
+                }
+                siblings.add(ZKPaths.getNodeFromPath(path));
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : children.entrySet()) {
+            List<String> list = entry.getValue();
+            Collections.sort(list);
+            entry.setValue(Collections.unmodifiableList(list));
+        }
+        return children;
+    }
+
+    /**
+     * 子树在某个时刻的不可变快照，发布之后不再修改，可以在任意线程里读
+     */
+    public static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(Collections.<String, ChildData>emptyMap(),
+                Collections.<String, List<String>>emptyMap(), 0, false, false);
+
+        private final Map<String, ChildData> nodes;
+
+        private final Map<String, List<String>> children;
+
+        private final long version;
+
+        private final boolean initialized;
+
+        private final boolean connected;
+
+        Snapshot(Map<String, ChildData> nodes, Map<String, List<String>> children, long version,
+                 boolean initialized, boolean connected) {
+            this.nodes = nodes;
+            this.children = children;
+            this.version = version;
+            this.initialized = initialized;
+            this.connected = connected;
+        }
+
+        /**
+         * @param path 完整路径
+         * @return 节点不存在时为null
+         */
+        public ChildData get(String path) {
+            return nodes.get(path);
+        }
+
+        /**
+         * @param path 完整路径
+         * @return 节点数据，不是副本，不要修改；节点不存在时为null
+         */
+        public byte[] getData(String path) {
+            ChildData data = nodes.get(path);
+            return data == null ? null : data.getData();
+        }
+
+        /**
+         * @param path 完整路径
+         * @return 排好序的子节点名，不可修改；节点不存在时为null
+         */
+        public List<String> getChildren(String path) {
+            return children.get(path);
+        }
+
+        public boolean contains(String path) {
+            return nodes.containsKey(path);
+        }
+
+        /**
+         * @return 节点数
+         */
+        public int size() {
+            return nodes.size();
+        }
+
+        /**
+         * @return 所有节点，不可修改，用于持久化
+         */
+        Collection<ChildData> nodes() {
+            return Collections.unmodifiableCollection(nodes.values());
+        }
+
+        /**
+         * @return 快照的序号，每发布一次加1
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return 初始数据是否已经加载完成，之前的快照可能只有一部分节点
+         */
+        public boolean isInitialized() {
+            return initialized;
+        }
+
+        /**
+         * @return 发布时和zookeeper的连接是否正常，断开期间快照可能已经过时
+         */
+        public boolean isConnected() {
+            return connected;
+        }
+    }
+}
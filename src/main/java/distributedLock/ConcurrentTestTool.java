@@ -3,15 +3,18 @@ package distributedLock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 使用CountDownLatch实现的并发测试工具
+ * 用nanoTime计时，延迟记录在无锁的直方图里，输出p50/p90/p99/p99.9和吞吐量。
+ * 两种用法：
+ * 1. new ConcurrentTestTool(tasks)：每个task一个线程，同时开始，各执行一次
+ * 2. new ConcurrentTestTool(threads, warmupMillis, measureMillis, task)：threads个线程循环执行task，
+ * 先预热warmupMillis不记录，再测量measureMillis，只统计测量阶段开始和结束的调用
+ * 两种用法都可以在最前面传入TaskExecution，指定用线程池、ForkJoinPool或虚拟线程执行，默认每个task一个平台线程
  */
 public class ConcurrentTestTool {
 
@@ -25,9 +28,9 @@ public class ConcurrentTestTool {
      */
     private CountDownLatch doneSignal = null;
     /**
-     * 线程执行花费时间list
+     * 测量阶段的延迟
      */
-    private CopyOnWriteArrayList<Long> exeTimeList = new CopyOnWriteArrayList<Long>();
+    private final LatencyHistogram histogram = new LatencyHistogram();
     /**
      * 错误计数，原子递增
      */
@@ -36,8 +39,33 @@ public class ConcurrentTestTool {
      * 要并行运行的tasks
      */
     private ConcurrentTask[] task = null;
+    /**
+     * 测量阶段开始的时间(nanoTime)，预热期间为Long.MAX_VALUE
+     */
+    private volatile long measureStart = Long.MAX_VALUE;
+    /**
+     * 测量阶段结束的时间(nanoTime)，测量期间为Long.MAX_VALUE
+     */
+    private volatile long measureEnd = Long.MAX_VALUE;
+    /**
+     * 循环执行的线程是否继续
+     */
+    private volatile boolean running = true;
+    /**
+     * 执行task的方式
+     */
+    private final TaskExecution execution;
 
     public ConcurrentTestTool(ConcurrentTask... task) {
+        this(TaskExecution.threadPerTask(), task);
+    }
+
+    /**
+     * @param execution 执行task的方式
+     * @param task      要并行运行的tasks
+     */
+    public ConcurrentTestTool(TaskExecution execution, ConcurrentTask... task) {
+        this.execution = execution;
         this.task = task;
         if (task == null) {
             LOGGER.error("task can not be null");
@@ -48,21 +76,54 @@ public class ConcurrentTestTool {
         start();
     }
 
+    /**
+     * 循环压测，预热后测量
+     *
+     * @param threads       并发线程数
+     * @param warmupMillis  预热时间，不记录
+     * @param measureMillis 测量时间
+     * @param task          每个线程循环执行的task
+     */
+    public ConcurrentTestTool(int threads, long warmupMillis, long measureMillis, ConcurrentTask task) {
+        this(TaskExecution.threadPerTask(), threads, warmupMillis, measureMillis, task);
+    }
+
+    /**
+     * 循环压测，预热后测量
+     *
+     * @param execution     执行task的方式
+     * @param threads       并发task数
+     * @param warmupMillis  预热时间，不记录
+     * @param measureMillis 测量时间
+     * @param task          每个并发task循环执行的task
+     */
+    public ConcurrentTestTool(TaskExecution execution, int threads, long warmupMillis, long measureMillis, ConcurrentTask task) {
+        if (execution == null || task == null || threads < 1) {
+            throw new IllegalArgumentException("execution and task can not be null, threads must be positive");
+        }
+        this.execution = execution;
+        doneSignal = new CountDownLatch(threads);
+        run(threads, warmupMillis, measureMillis, task);
+    }
+
     /**
      * 启动tasks
      */
     private void start() {
         //创建线程，并将所有线程等待在阀门处
         createThread();
+        //所有task都在测量范围内
+        measureStart = System.nanoTime();
         //打开阀门，开始执行所有tasks
         startSignal.countDown();
         try {
-            //等待所有线程都执行完毕
+            //等待所有线程都执行完毕，不需要再额外等待
             doneSignal.await();
-            Thread.sleep(1000);
         } catch (InterruptedException e) {
             LOGGER.error("start wait error: ", e);
         }
+        measureEnd = System.nanoTime();
+        execution.shutdown();
         //执行完毕，计算并打印执行时间
         getExeTime();
     }
@@ -74,52 +135,110 @@ public class ConcurrentTestTool {
         long len = doneSignal.getCount();
         for (int i = 0; i < len; i++) {
             final int j = i;
-            new Thread(new Runnable() {
+            execution.execute(new Runnable() {
                 @Override
                 public void run() {
                     try {
                         //使当前线程在锁存器倒计数至零之前一直等待
                         startSignal.await();
-                        long start = System.currentTimeMillis();
+                        long start = System.nanoTime();
                         task[j].run();
-                        long end = (System.currentTimeMillis() - start);
-                        exeTimeList.add(end);
+                        histogram.record(System.nanoTime() - start);
                     } catch (Exception e) {
                         err.getAndIncrement();//相当于err++
                     }
                     //运行完毕，计数减1
                     doneSignal.countDown();
                 }
-            }).start();
+            }, "task-" + i);
         }
     }
 
     /**
-     * 计算平均响应时间
+     * 循环压测
      */
-    private void getExeTime() {
-        int size = exeTimeList.size();
-        List<Long> _list = new ArrayList<Long>(size);
-        _list.addAll(exeTimeList);
-        Collections.sort(_list);
-        long min = _list.get(0);
-        long max = _list.get(size - 1);
-        long sum = 0L;
-        for (Long t : _list) {
-            sum += t;
+    private void run(int threads, long warmupMillis, long measureMillis, final ConcurrentTask loopTask) {
+        for (int i = 0; i < threads; i++) {
+            execution.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startSignal.await();
+                        while (running) {
+                            long start = System.nanoTime();
+                            boolean ok = true;
+                            try {
+                                loopTask.run();
+                            } catch (Exception e) {
+                                ok = false;
+                            }
+                            long end = System.nanoTime();
+                            //只统计完全落在测量阶段里的调用
+                            if (start >= measureStart && end <= measureEnd) {
+                                if (ok) {
+                                    histogram.record(end - start);
+                                } else {
+                                    err.getAndIncrement();
+                                }
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    doneSignal.countDown();
+                }
+            }, "bench-" + i);
         }
-        long avg = sum / size;
-        LOGGER.info("ExeTime min: " + min);
-        LOGGER.info("ExeTime max: " + max);
-        LOGGER.info("ExeTime avg: " + avg);
+        startSignal.countDown();
+        try {
+            TimeUnit.MILLISECONDS.sleep(warmupMillis);
+            LOGGER.info("warmup " + warmupMillis + "ms done, measure " + measureMillis + "ms");
+            measureStart = System.nanoTime();
+            TimeUnit.MILLISECONDS.sleep(measureMillis);
+            measureEnd = System.nanoTime();
+            running = false;
+            doneSignal.await();
+        } catch (InterruptedException e) {
+            LOGGER.error("run wait error: ", e);
+            measureEnd = Math.min(measureEnd, System.nanoTime());
+            running = false;
+        }
+        execution.shutdown();
+        getExeTime();
+    }
+
+    /**
+     * 计算并打印延迟分布和吞吐量
+     */
+    private void getExeTime() {
+        LOGGER.info("Execution: " + execution);
+        LOGGER.info("ExeTime " + histogram.summary());
+        LOGGER.info("Throughput: " + String.format("%.1f", getOpsPerSecond()) + " ops/sec");
         LOGGER.info("Exe err: " + err.get());
     }
 
+    /**
+     * @return 测量阶段的延迟直方图
+     */
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * @return 测量阶段每秒完成的调用数
+     */
+    public double getOpsPerSecond() {
+        long elapsed = measureEnd - measureStart;
+        return elapsed <= 0 ? 0.0 : histogram.getCount() * 1000000000.0 / elapsed;
+    }
+
+    public int getErrors() {
+        return err.get();
+    }
+
     //内部接口
     public interface ConcurrentTask {
         //在实现里面加 分布锁
         void run();
     }
 }
-
-
@@ -0,0 +1,343 @@
+package distributedLock;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.quorum.QuorumPeer;
+import org.apache.zookeeper.server.quorum.QuorumPeerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * 进程内的多节点zookeeper集群，用于故障演练：可以杀掉leader、重启节点、让session过期，
+ * 还可以给每个节点套一层TcpProxy，通过proxy连接的客户端可以被单独隔离
+ * 节点编号从1开始
+ */
+public class EmbeddedEnsemble {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedEnsemble.class);
+
+    private static final int TICK_TIME = 500;
+
+    private static final int MAX_CLIENT_CNXNS = 10000;
+
+    private final int size;
+
+    private final int minSessionTimeout;
+
+    private final int maxSessionTimeout;
+
+    private File baseDir;
+
+    private int[] clientPorts;
+
+    private QuorumPeerConfig[] configs;
+
+    private QuorumPeer[] peers;
+
+    private final List<TcpProxy> proxies = new ArrayList<TcpProxy>();
+
+    /**
+     * @param size 节点数，至少3个才能在杀掉一个节点后保持多数
+     */
+    public EmbeddedEnsemble(int size) {
+        this(size, 2 * TICK_TIME, 20 * TICK_TIME);
+    }
+
+    /**
+     * @param size              节点数
+     * @param minSessionTimeout 服务端允许的最小session超时时间
+     * @param maxSessionTimeout 服务端允许的最大session超时时间
+     */
+    public EmbeddedEnsemble(int size, int minSessionTimeout, int maxSessionTimeout) {
+        if (size < 1) {
+            throw new IllegalArgumentException("ensemble size must be positive: " + size);
+        }
+        this.size = size;
+        this.minSessionTimeout = minSessionTimeout;
+        this.maxSessionTimeout = maxSessionTimeout;
+    }
+
+    /**
+     * 启动所有节点并等待选出leader
+     *
+     * @param timeoutMillis 等待选举的时间
+     * @return zookeeper服务地址
+     * @throws IOException
+     */
+    public synchronized String start(long timeoutMillis) throws IOException {
+        if (System.getProperty("zookeeper.forceSync") == null) {
+            System.setProperty("zookeeper.forceSync", "no");
+        }
+        baseDir = Files.createTempDirectory("embedded-ensemble").toFile();
+        clientPorts = new int[size + 1];
+        configs = new QuorumPeerConfig[size + 1];
+        peers = new QuorumPeer[size + 1];
+        Properties properties = new Properties();
+        properties.setProperty("tickTime", String.valueOf(TICK_TIME));
+        properties.setProperty("initLimit", "10");
+        properties.setProperty("syncLimit", "5");
+        properties.setProperty("minSessionTimeout", String.valueOf(minSessionTimeout));
+        properties.setProperty("maxSessionTimeout", String.valueOf(maxSessionTimeout));
+        properties.setProperty("maxClientCnxns", String.valueOf(MAX_CLIENT_CNXNS));
+        for (int id = 1; id <= size; id++) {
+            clientPorts[id] = freePort();
+            properties.setProperty("server." + id, "127.0.0.1:" + freePort() + ":" + freePort());
+        }
+        for (int id = 1; id <= size; id++) {
+            File dataDir = new File(baseDir, "server" + id);
+            if (!dataDir.mkdirs()) {
+                throw new IOException("create " + dataDir + " failed");
+            }
+            Files.write(new File(dataDir, "myid").toPath(), String.valueOf(id).getBytes(StandardCharsets.UTF_8));
+            Properties peerProperties = new Properties();
+            peerProperties.putAll(properties);
+            peerProperties.setProperty("dataDir", dataDir.getAbsolutePath());
+            peerProperties.setProperty("clientPort", String.valueOf(clientPorts[id]));
+            peerProperties.setProperty("clientPortAddress", "127.0.0.1");
+            QuorumPeerConfig config = new QuorumPeerConfig();
+            try {
+                config.parseProperties(peerProperties);
+            } catch (QuorumPeerConfig.ConfigException e) {
+                throw new IOException(e);
+            }
+            configs[id] = config;
+        }
+        for (int id = 1; id <= size; id++) {
+            startPeer(id);
+        }
+        awaitLeader(timeoutMillis);
+        String connectString = getConnectString();
+        LOGGER.info("embedded ensemble started at " + connectString + ", dataDir " + baseDir);
+        return connectString;
+    }
+
+    /**
+     * @return 直连所有节点的服务地址
+     */
+    public synchronized String getConnectString() {
+        StringBuilder builder = new StringBuilder();
+        for (int id = 1; id <= size; id++) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append("127.0.0.1:").append(clientPorts[id]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 给每个节点建一个TcpProxy，用TcpProxy.connectString()连接的客户端可以用TcpProxy.partition()单独隔离
+     *
+     * @return 每个节点一个proxy，集群停止时一起停止
+     * @throws IOException
+     */
+    public synchronized List<TcpProxy> newProxies() throws IOException {
+        List<TcpProxy> created = new ArrayList<TcpProxy>();
+        for (int id = 1; id <= size; id++) {
+            TcpProxy proxy = new TcpProxy("127.0.0.1", clientPorts[id]);
+            proxy.start();
+            proxies.add(proxy);
+            created.add(proxy);
+        }
+        return created;
+    }
+
+    /**
+     * @return 当前leader的编号，没有leader时为-1
+     */
+    public synchronized int getLeader() {
+        for (int id = 1; id <= size; id++) {
+            if (peers[id] != null && peers[id].getPeerState() == QuorumPeer.ServerState.LEADING) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 杀掉leader
+     *
+     * @return 被杀掉的节点编号，没有leader时为-1
+     */
+    public synchronized int killLeader() {
+        int leader = getLeader();
+        if (leader > 0) {
+            stopPeer(leader);
+        }
+        return leader;
+    }
+
+    /**
+     * 停止一个节点，数据目录保留，可以用startPeer重启
+     *
+     * @param id 节点编号
+     */
+    public synchronized void stopPeer(int id) {
+        QuorumPeer peer = peers[id];
+        if (peer == null) {
+            return;
+        }
+        peers[id] = null;
+        peer.shutdown();
+        try {
+            peer.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.info("ensemble server " + id + " stopped");
+    }
+
+    /**
+     * 启动(或重启)一个节点，按QuorumPeerMain.runFromConfig的方式组装
+     *
+     * @param id 节点编号
+     * @throws IOException
+     */
+    public synchronized void startPeer(int id) throws IOException {
+        if (peers[id] != null) {
+            return;
+        }
+        QuorumPeerConfig config = configs[id];
+        ServerCnxnFactory cnxnFactory = ServerCnxnFactory.createFactory();
+        cnxnFactory.configure(config.getClientPortAddress(), config.getMaxClientCnxns());
+        QuorumPeer peer = new QuorumPeer();
+        peer.setClientPortAddress(config.getClientPortAddress());
+        peer.setTxnFactory(new FileTxnSnapLog(new File(config.getDataLogDir()), new File(config.getDataDir())));
+        peer.setQuorumPeers(config.getServers());
+        peer.setElectionType(config.getElectionAlg());
+        peer.setMyid(config.getServerId());
+        peer.setTickTime(config.getTickTime());
+        peer.setMinSessionTimeout(config.getMinSessionTimeout());
+        peer.setMaxSessionTimeout(config.getMaxSessionTimeout());
+        peer.setInitLimit(config.getInitLimit());
+        peer.setSyncLimit(config.getSyncLimit());
+        peer.setQuorumVerifier(config.getQuorumVerifier());
+        peer.setCnxnFactory(cnxnFactory);
+        peer.setZKDatabase(new ZKDatabase(peer.getTxnFactory()));
+        peer.setLearnerType(config.getPeerType());
+        peer.setSyncEnabled(config.getSyncEnabled());
+        peer.setQuorumListenOnAllIPs(config.getQuorumListenOnAllIPs());
+        peer.start();
+        peers[id] = peer;
+        LOGGER.info("ensemble server " + id + " started");
+    }
+
+    /**
+     * 重启所有停掉的节点
+     *
+     * @throws IOException
+     */
+    public synchronized void restartStopped() throws IOException {
+        for (int id = 1; id <= size; id++) {
+            startPeer(id);
+        }
+    }
+
+    /**
+     * 等待所有运行中的节点都进入LEADING或FOLLOWING状态，并且只有一个leader
+     *
+     * @param timeoutMillis
+     * @throws IOException 超时
+     */
+    public void awaitLeader(long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!isStable()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("ensemble has no stable leader after " + timeoutMillis + "ms");
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private synchronized boolean isStable() {
+        int leaders = 0;
+        for (int id = 1; id <= size; id++) {
+            QuorumPeer peer = peers[id];
+            if (peer == null) {
+                continue;
+            }
+            QuorumPeer.ServerState state = peer.getPeerState();
+            if (state == QuorumPeer.ServerState.LEADING) {
+                leaders++;
+            } else if (state != QuorumPeer.ServerState.FOLLOWING) {
+                return false;
+            }
+            //选举完成后还要等服务端真正开始处理请求
+            if (peer.getActiveServer() == null || !peer.getActiveServer().isRunning()) {
+                return false;
+            }
+        }
+        return leaders == 1;
+    }
+
+    /**
+     * 让一个客户端的session在服务端过期：用同样的session id和密码建一个连接再关闭，
+     * 服务端会关闭这个session，原来的客户端重连时收到Expired
+     *
+     * @param zk 要过期的客户端
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void expireSession(ZooKeeper zk) throws IOException, InterruptedException {
+        ZooKeeper duplicate = new ZooKeeper(getConnectString(), maxSessionTimeout, null,
+                zk.getSessionId(), zk.getSessionPasswd());
+        long deadline = System.currentTimeMillis() + maxSessionTimeout;
+        while (!duplicate.getState().isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        duplicate.close();
+    }
+
+    /**
+     * 停止所有节点和proxy，删除数据目录
+     */
+    public synchronized void stop() {
+        for (TcpProxy proxy : proxies) {
+            proxy.stop();
+        }
+        proxies.clear();
+        if (peers != null) {
+            for (int id = 1; id <= size; id++) {
+                stopPeer(id);
+            }
+        }
+        if (baseDir != null) {
+            delete(baseDir);
+            baseDir = null;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            LOGGER.debug("delete " + file + " failed");
+        }
+    }
+}
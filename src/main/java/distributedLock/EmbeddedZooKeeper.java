@@ -0,0 +1,100 @@
+package distributedLock;
+
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+
+/**
+ * 进程内的单机zookeeper，数据放在临时目录，用于压测和演示，不依赖远程服务器
+ * 默认关闭事务日志的fsync，测出来的是锁本身的开销而不是磁盘的开销
+ */
+public class EmbeddedZooKeeper {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedZooKeeper.class);
+
+    private static final int TICK_TIME = 2000;
+
+    private static final int MAX_CLIENT_CNXNS = 10000;
+
+    private File dataDir;
+
+    private ZooKeeperServer server;
+
+    private ServerCnxnFactory cnxnFactory;
+
+    /**
+     * 在随机端口上启动
+     *
+     * @return zookeeper服务地址
+     * @throws IOException
+     */
+    public String start() throws IOException {
+        return start(0);
+    }
+
+    /**
+     * @param port 0表示随机端口
+     * @return zookeeper服务地址
+     * @throws IOException
+     */
+    public synchronized String start(int port) throws IOException {
+        if (System.getProperty("zookeeper.forceSync") == null) {
+            System.setProperty("zookeeper.forceSync", "no");
+        }
+        dataDir = Files.createTempDirectory("embedded-zk").toFile();
+        server = new ZooKeeperServer(dataDir, dataDir, TICK_TIME);
+        cnxnFactory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", port), MAX_CLIENT_CNXNS);
+        try {
+            cnxnFactory.startup(server);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        String config = getConfig();
+        LOGGER.info("embedded zookeeper started at " + config + ", dataDir " + dataDir);
+        return config;
+    }
+
+    /**
+     * @return zookeeper服务地址
+     */
+    public synchronized String getConfig() {
+        return "127.0.0.1:" + cnxnFactory.getLocalPort();
+    }
+
+    /**
+     * 停止并删除数据目录
+     */
+    public synchronized void stop() {
+        if (cnxnFactory != null) {
+            cnxnFactory.shutdown();
+            cnxnFactory = null;
+        }
+        if (server != null) {
+            server.shutdown();
+            server = null;
+        }
+        if (dataDir != null) {
+            delete(dataDir);
+            dataDir = null;
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            LOGGER.debug("delete " + file + " failed");
+        }
+    }
+}
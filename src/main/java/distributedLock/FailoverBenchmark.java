@@ -0,0 +1,568 @@
+package distributedLock;
+
+import distributedLock.lock.DistributedLock;
+import distributedLock.lock.DistributedLockFactory;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessLock;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessReadWriteLock;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreV2;
+import org.apache.curator.framework.recipes.locks.Lease;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 故障演练压测：在进程内的3节点集群上，几个客户端循环抢同一把锁，运行中途注入故障，测量
+ * 1. 锁服务不可用的时间：故障之后相邻两次成功加锁的最大间隔
+ * 2. 等待者卡住的时间：故障之后单次加锁调用的最长耗时
+ * 3. 重复持有：一个客户端还认为自己持有锁时，另一个客户端也拿到了锁的次数，以及同时持有的总时间
+ * 4. 恢复时间：锁应该重新可用之后(session过期的故障从session过期算起)相邻两次成功加锁的最大间隔，
+ * 超过session超时时间算没有恢复，有没恢复的演练时进程以1退出
+ * 故障有三种：
+ * KILL_LEADER 杀掉leader节点，一段时间后重启；
+ * PARTITION 持有锁的客户端(经过TcpProxy连接)被隔离，超过session超时时间后恢复；
+ * EXPIRE_SESSION 持有锁的客户端的session被强制过期。
+ * 后两种故障注入时受害的客户端正在持有锁，并且继续"工作"到session超时之后，用来观察锁被别人拿走的时间和重复持有。
+ * 参数: [锁类型,逗号分隔] [故障,逗号分隔]
+ * 锁类型: DistributedLock, InterProcessMutex, InterProcessSemaphoreMutex, InterProcessReadWriteLock.write, InterProcessSemaphoreV2
+ */
+public class FailoverBenchmark {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FailoverBenchmark.class);
+
+    private static final String[] LOCK_TYPES = {"DistributedLock", "InterProcessMutex", "InterProcessSemaphoreMutex",
+            "InterProcessReadWriteLock.write", "InterProcessSemaphoreV2"};
+
+    private static final int ENSEMBLE_SIZE = 3;
+
+    private static final int SESSION_TIMEOUT = 4000;
+
+    private static final int CONNECTION_TIMEOUT = 3000;
+
+    /**
+     * 抢锁的客户端数，0号是受害者，经过proxy连接
+     */
+    private static final int CLIENTS = 3;
+
+    /**
+     * 正常情况下每次持有锁的时间
+     */
+    private static final long HOLD_MILLIS = 5;
+
+    /**
+     * 受害者在故障时持有锁的时间，要超过session超时和恢复的时间
+     */
+    private static final long VICTIM_HOLD_MILLIS = SESSION_TIMEOUT * 3;
+
+    private static final long ACQUIRE_TIMEOUT_MILLIS = SESSION_TIMEOUT * 2;
+
+    private static final long BASELINE_MILLIS = 3000;
+
+    /**
+     * 故障持续的时间，之后重启节点或恢复网络
+     */
+    private static final long FAULT_MILLIS = SESSION_TIMEOUT * 2;
+
+    /**
+     * 恢复之后继续观察的时间
+     */
+    private static final long RECOVER_MILLIS = SESSION_TIMEOUT * 2;
+
+    public enum Fault {
+        KILL_LEADER, PARTITION, EXPIRE_SESSION
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] lockTypes = args.length > 0 ? args[0].split(",") : LOCK_TYPES;
+        List<Fault> faults = new ArrayList<Fault>();
+        if (args.length > 1) {
+            for (String fault : args[1].split(",")) {
+                faults.add(Fault.valueOf(fault));
+            }
+        } else {
+            faults.addAll(Arrays.asList(Fault.values()));
+        }
+        EmbeddedEnsemble ensemble = new EmbeddedEnsemble(ENSEMBLE_SIZE);
+        ensemble.start(30000);
+        List<Result> results = new ArrayList<Result>();
+        try {
+            for (Fault fault : faults) {
+                for (String lockType : lockTypes) {
+                    LOGGER.info("=====" + lockType + " " + fault + "==========");
+                    results.add(new Scenario(ensemble, lockType, fault).run());
+                }
+            }
+        } finally {
+            ensemble.stop();
+        }
+        StringBuilder table = new StringBuilder(String.format("%n%-32s%-16s%14s%14s%14s%8s%8s%12s%14s%10s",
+                "lock", "fault", "baseline(ms)", "unavail(ms)", "stall(ms)", "failed", "dup", "dup(ms)",
+                "recover(ms)", "recovered"));
+        List<String> unrecovered = new ArrayList<String>();
+        for (Result result : results) {
+            table.append(String.format("%n%-32s%-16s%14.1f%14.1f%14.1f%8d%8d%12.1f%14.1f%10s", result.lockType, result.fault,
+                    result.baselineGapMillis, result.unavailableMillis, result.maxStallMillis, result.failed,
+                    result.duplicates, result.overlapMillis, result.recoverMillis, result.isRecovered()));
+            if (!result.isRecovered()) {
+                unrecovered.add(result.lockType + " " + result.fault);
+            }
+        }
+        LOGGER.info("failover results (baseline = max gap between acquisitions before the fault):" + table);
+        if (!unrecovered.isEmpty()) {
+            LOGGER.error("waiters did not reacquire within session timeout " + SESSION_TIMEOUT + "ms: " + unrecovered);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * 一次演练的结果
+     */
+    private static class Result {
+
+        final String lockType;
+
+        final Fault fault;
+
+        /**
+         * 故障前相邻两次成功加锁的最大间隔，作为对照
+         */
+        final double baselineGapMillis;
+
+        /**
+         * 故障后相邻两次成功加锁的最大间隔
+         */
+        final double unavailableMillis;
+
+        /**
+         * 故障后单次加锁调用的最长耗时
+         */
+        final double maxStallMillis;
+
+        /**
+         * 故障后失败(超时或异常)的加锁调用数
+         */
+        final int failed;
+
+        /**
+         * 别的客户端还在持有时拿到锁的次数
+         */
+        final int duplicates;
+
+        /**
+         * 两个以上客户端同时持有锁的总时间
+         */
+        final double overlapMillis;
+
+        /**
+         * 锁应该重新可用之后相邻两次成功加锁的最大间隔，包括到演练结束的间隔
+         */
+        final double recoverMillis;
+
+        Result(String lockType, Fault fault, double baselineGapMillis, double unavailableMillis,
+               double maxStallMillis, int failed, int duplicates, double overlapMillis, double recoverMillis) {
+            this.lockType = lockType;
+            this.fault = fault;
+            this.baselineGapMillis = baselineGapMillis;
+            this.unavailableMillis = unavailableMillis;
+            this.maxStallMillis = maxStallMillis;
+            this.failed = failed;
+            this.duplicates = duplicates;
+            this.overlapMillis = overlapMillis;
+            this.recoverMillis = recoverMillis;
+        }
+
+        /**
+         * @return 等待者是否在session超时时间内重新拿到锁
+         */
+        boolean isRecovered() {
+            return recoverMillis <= SESSION_TIMEOUT;
+        }
+    }
+
+    /**
+     * 一次演练：启动客户端，跑一段基线，注入故障，恢复，统计
+     */
+    private static class Scenario {
+
+        private final EmbeddedEnsemble ensemble;
+
+        private final String lockType;
+
+        private final Fault fault;
+
+        /**
+         * 当前认为自己持有锁的客户端数，和下面的统计一起用this同步
+         */
+        private int holders;
+
+        /**
+         * 别的客户端还在持有时拿到锁的次数
+         */
+        private int duplicates;
+
+        /**
+         * 两个以上客户端同时持有的开始时间
+         */
+        private long overlapStart;
+
+        /**
+         * 两个以上客户端同时持有的总时间
+         */
+        private long overlapNanos;
+
+        /**
+         * 成功加锁的时间(nanoTime)
+         */
+        private final ConcurrentLinkedQueue<Long> acquisitions = new ConcurrentLinkedQueue<Long>();
+
+        /**
+         * 每次加锁调用的{开始, 结束, 是否成功}
+         */
+        private final ConcurrentLinkedQueue<long[]> attempts = new ConcurrentLinkedQueue<long[]>();
+
+        private volatile boolean running = true;
+
+        /**
+         * 受害者下一次拿到锁时长时间持有
+         */
+        private volatile boolean victimHoldLong;
+
+        /**
+         * 受害者正在长时间持有
+         */
+        private volatile boolean victimHolding;
+
+        Scenario(EmbeddedEnsemble ensemble, String lockType, Fault fault) {
+            this.ensemble = ensemble;
+            this.lockType = lockType;
+            this.fault = fault;
+        }
+
+        Result run() throws Exception {
+            String lockName = "failover-" + lockType.replace('.', '-') + "-" + fault;
+            List<TcpProxy> proxies = ensemble.newProxies();
+            Client[] clients = new Client[CLIENTS];
+            Thread[] threads = new Thread[CLIENTS];
+            long start = System.nanoTime();
+            long faultAt;
+            long stopAt;
+            try {
+                for (int i = 0; i < CLIENTS; i++) {
+                    String connectString = i == 0 ? TcpProxy.connectString(proxies) : ensemble.getConnectString();
+                    clients[i] = newClient(lockType, connectString, lockName);
+                }
+                for (int i = 0; i < CLIENTS; i++) {
+                    final Client client = clients[i];
+                    final boolean victim = i == 0;
+                    threads[i] = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            loop(client, victim);
+                        }
+                    }, "failover-client-" + i);
+                    threads[i].setDaemon(true);
+                    threads[i].start();
+                }
+                Thread.sleep(BASELINE_MILLIS);
+                if (fault != Fault.KILL_LEADER) {
+                    //等受害者拿到锁再注入故障
+                    victimHoldLong = true;
+                    long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT_MILLIS;
+                    while (!victimHolding && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(1);
+                    }
+                }
+                faultAt = System.nanoTime();
+                int killed = -1;
+                switch (fault) {
+                    case KILL_LEADER:
+                        killed = ensemble.killLeader();
+                        LOGGER.info("killed leader " + killed);
+                        break;
+                    case PARTITION:
+                        for (TcpProxy proxy : proxies) {
+                            proxy.partition();
+                        }
+                        break;
+                    case EXPIRE_SESSION:
+                        ensemble.expireSession(clients[0].zooKeeper());
+                        LOGGER.info("expired session of client 0");
+                        break;
+                    default:
+                        break;
+                }
+                Thread.sleep(FAULT_MILLIS);
+                if (killed > 0) {
+                    ensemble.startPeer(killed);
+                }
+                for (TcpProxy proxy : proxies) {
+                    proxy.heal();
+                }
+                Thread.sleep(RECOVER_MILLIS);
+            } finally {
+                stopAt = System.nanoTime();
+                running = false;
+                for (Thread thread : threads) {
+                    if (thread != null) {
+                        thread.join(VICTIM_HOLD_MILLIS + ACQUIRE_TIMEOUT_MILLIS);
+                        if (thread.isAlive()) {
+                            LOGGER.warn(thread.getName() + " is still blocked");
+                        }
+                    }
+                }
+                for (Client client : clients) {
+                    if (client != null) {
+                        client.close();
+                    }
+                }
+                for (TcpProxy proxy : proxies) {
+                    proxy.stop();
+                }
+            }
+            ensemble.awaitLeader(30000);
+            return summarize(start, faultAt, stopAt);
+        }
+
+        private void loop(Client client, boolean victim) {
+            while (running) {
+                long begin = System.nanoTime();
+                boolean acquired = false;
+                try {
+                    acquired = client.acquire(ACQUIRE_TIMEOUT_MILLIS);
+                } catch (Exception e) {
+                    LOGGER.debug("acquire error: " + e);
+                }
+                long end = System.nanoTime();
+                attempts.add(new long[]{begin, end, acquired ? 1 : 0});
+                if (!acquired) {
+                    sleep(HOLD_MILLIS);
+                    continue;
+                }
+                acquisitions.add(end);
+                enter();
+                if (victim && victimHoldLong) {
+                    victimHoldLong = false;
+                    victimHolding = true;
+                    sleep(VICTIM_HOLD_MILLIS);
+                    victimHolding = false;
+                } else {
+                    sleep(HOLD_MILLIS);
+                }
+                exit();
+                try {
+                    client.release();
+                } catch (Exception e) {
+                    LOGGER.debug("release error: " + e);
+                }
+            }
+        }
+
+        private synchronized void enter() {
+            holders++;
+            if (holders == 2) {
+                overlapStart = System.nanoTime();
+                if (duplicates == 0) {
+                    LOGGER.warn("duplicate holder detected, 2 clients hold " + lockType);
+                }
+            }
+            if (holders > 1) {
+                duplicates++;
+            }
+        }
+
+        private synchronized void exit() {
+            if (holders == 2) {
+                overlapNanos += System.nanoTime() - overlapStart;
+            }
+            holders--;
+        }
+
+        private synchronized Result summarize(long start, long faultAt, long stopAt) {
+            List<Long> times = new ArrayList<Long>(acquisitions);
+            Collections.sort(times);
+            long baselineGap = 0;
+            long unavailable = 0;
+            //去掉客户端刚启动的一秒
+            long prev = start + TimeUnit.SECONDS.toNanos(1);
+            boolean afterFault = false;
+            for (long time : times) {
+                if (time < prev) {
+                    continue;
+                }
+                if (!afterFault && time >= faultAt) {
+                    baselineGap = Math.max(baselineGap, faultAt - prev);
+                    prev = faultAt;
+                    afterFault = true;
+                }
+                if (afterFault) {
+                    unavailable = Math.max(unavailable, time - prev);
+                } else {
+                    baselineGap = Math.max(baselineGap, time - prev);
+                }
+                prev = time;
+            }
+            if (!afterFault) {
+                //故障之后一次都没有拿到锁
+                unavailable = System.nanoTime() - faultAt;
+            }
+            //分区的受害者要等服务端让它的session过期，锁才会被释放
+            long freeAt = fault == Fault.PARTITION ? faultAt + TimeUnit.MILLISECONDS.toNanos(SESSION_TIMEOUT) : faultAt;
+            long recover = 0;
+            prev = freeAt;
+            for (long time : times) {
+                if (time >= freeAt) {
+                    recover = Math.max(recover, time - prev);
+                    prev = time;
+                }
+            }
+            recover = Math.max(recover, stopAt - prev);
+            long maxStall = 0;
+            int failed = 0;
+            for (long[] attempt : attempts) {
+                if (attempt[1] < faultAt) {
+                    continue;
+                }
+                maxStall = Math.max(maxStall, attempt[1] - Math.max(attempt[0], faultAt));
+                if (attempt[2] == 0) {
+                    failed++;
+                }
+            }
+            return new Result(lockType, fault, baselineGap / 1000000.0, unavailable / 1000000.0,
+                    maxStall / 1000000.0, failed, duplicates, overlapNanos / 1000000.0, recover / 1000000.0);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 一个客户端(一个session)和它的锁
+     */
+    private interface Client {
+
+        boolean acquire(long timeoutMillis) throws Exception;
+
+        void release() throws Exception;
+
+        /**
+         * @return 当前的zookeeper连接，用来让session过期
+         */
+        ZooKeeper zooKeeper() throws Exception;
+
+        void close();
+    }
+
+    private static Client newClient(String lockType, final String connectString, final String lockName) throws Exception {
+        if ("DistributedLock".equals(lockType)) {
+            //每个客户端一个session
+            final DistributedLockFactory factory = new DistributedLockFactory(1, SESSION_TIMEOUT);
+            return new Client() {
+
+                private DistributedLock lock;
+
+                @Override
+                public boolean acquire(long timeoutMillis) {
+                    lock = factory.newLock(connectString, lockName);
+                    return lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS);
+                }
+
+                @Override
+                public void release() {
+                    lock.unlock();
+                }
+
+                @Override
+                public ZooKeeper zooKeeper() {
+                    return factory.getSessions(connectString).get(0);
+                }
+
+                @Override
+                public void close() {
+                    factory.close();
+                }
+            };
+        }
+        final CuratorFramework client = CuratorFrameworkFactory.newClient(connectString, SESSION_TIMEOUT, CONNECTION_TIMEOUT,
+                new ExponentialBackoffRetry(100, 5));
+        client.start();
+        client.blockUntilConnected(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+        String path = "/failover/" + lockName;
+        if ("InterProcessSemaphoreV2".equals(lockType)) {
+            final InterProcessSemaphoreV2 semaphore = new InterProcessSemaphoreV2(client, path, 1);
+            return new CuratorClient(client) {
+
+                private Lease lease;
+
+                @Override
+                public boolean acquire(long timeoutMillis) throws Exception {
+                    lease = semaphore.acquire(timeoutMillis, TimeUnit.MILLISECONDS);
+                    return lease != null;
+                }
+
+                @Override
+                public void release() {
+                    semaphore.returnLease(lease);
+                }
+            };
+        }
+        final InterProcessLock lock;
+        if ("InterProcessMutex".equals(lockType)) {
+            lock = new InterProcessMutex(client, path);
+        } else if ("InterProcessSemaphoreMutex".equals(lockType)) {
+            lock = new InterProcessSemaphoreMutex(client, path);
+        } else if ("InterProcessReadWriteLock.write".equals(lockType)) {
+            lock = new InterProcessReadWriteLock(client, path).writeLock();
+        } else {
+            CloseableUtils.closeQuietly(client);
+            throw new IllegalArgumentException("unknown lockType: " + lockType);
+        }
+        return new CuratorClient(client) {
+            @Override
+            public boolean acquire(long timeoutMillis) throws Exception {
+                return lock.acquire(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void release() throws Exception {
+                lock.release();
+            }
+        };
+    }
+
+    private abstract static class CuratorClient implements Client {
+
+        private final CuratorFramework client;
+
+        CuratorClient(CuratorFramework client) {
+            this.client = client;
+        }
+
+        @Override
+        public ZooKeeper zooKeeper() throws Exception {
+            return client.getZookeeperClient().getZooKeeper();
+        }
+
+        @Override
+        public void close() {
+            CloseableUtils.closeQuietly(client);
+        }
+    }
+}
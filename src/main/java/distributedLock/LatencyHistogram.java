@@ -0,0 +1,207 @@
+package distributedLock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的延迟直方图，单位纳秒
+ * 桶按2的幂分段，每段再均分成64个子桶，相对误差不超过1/64，
+ * 记录只是对一个桶做原子加1，多线程同时记录不用加锁，也不会像CopyOnWriteArrayList那样每次复制整个数组。
+ * 分位数取桶的上界，结果偏保守
+ */
+public class LatencyHistogram {
+
+    /**
+     * 小于这个值的延迟每个值一个桶
+     */
+    private static final int LINEAR_BUCKETS = 128;
+    /**
+     * 每个2的幂分段的子桶数
+     */
+    private static final int SUB_BUCKETS = 64;
+    /**
+     * 子桶数的位数
+     */
+    private static final int SUB_BITS = 6;
+    /**
+     * long正数最高位是62，分段移位最大为62-SUB_BITS
+     */
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (62 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一次延迟
+     *
+     * @param nanos 延迟纳秒，负数按0记
+     */
+    public void record(long nanos) {
+        long value = Math.max(0L, nanos);
+        buckets.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value < (m = min.get()) && !min.compareAndSet(m, value)) {
+            //其他线程改了最小值，重新比较
+        }
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            //其他线程改了最大值，重新比较
+        }
+    }
+
+    /**
+     * 合并另一个直方图的数据，比如多个进程的结果汇总
+     *
+     * @param other
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long c = other.buckets.get(i);
+            if (c > 0) {
+                buckets.addAndGet(i, c);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        long m;
+        long otherMin = other.min.get();
+        while (otherMin < (m = min.get()) && !min.compareAndSet(m, otherMin)) {
+            //重新比较
+        }
+        long otherMax = other.max.get();
+        while (otherMax > (m = max.get()) && !max.compareAndSet(m, otherMax)) {
+            //重新比较
+        }
+    }
+
+    /**
+     * 编码成一行文本，用于跨进程传输，格式：count,sum,min,max,然后是桶下标:计数
+     *
+     * @return
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(count.get()).append(',').append(sum.get()).append(',')
+                .append(min.get()).append(',').append(max.get());
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long c = buckets.get(i);
+            if (c > 0) {
+                sb.append(',').append(i).append(':').append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * encode()的逆操作
+     *
+     * @param text
+     * @return
+     */
+    public static LatencyHistogram decode(String text) {
+        String[] parts = text.trim().split(",");
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.count.set(Long.parseLong(parts[0]));
+        histogram.sum.set(Long.parseLong(parts[1]));
+        histogram.min.set(Long.parseLong(parts[2]));
+        histogram.max.set(Long.parseLong(parts[3]));
+        for (int i = 4; i < parts.length; i++) {
+            int colon = parts[i].indexOf(':');
+            histogram.buckets.set(Integer.parseInt(parts[i].substring(0, colon)), Long.parseLong(parts[i].substring(colon + 1)));
+        }
+        return histogram;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMin() {
+        return count.get() == 0 ? 0L : min.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long c = count.get();
+        return c == 0 ? 0.0 : (double) sum.get() / c;
+    }
+
+    /**
+     * @param percentile 0到100，比如99.9
+     * @return 分位数(纳秒)，没有数据时为0
+     */
+    public long getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(highestOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return 毫秒为单位的分位数摘要
+     */
+    public String summary() {
+        return String.format("count=%d min=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f mean=%.3f (ms)",
+                getCount(), millis(getMin()), millis(getPercentile(50)), millis(getPercentile(90)),
+                millis(getPercentile(99)), millis(getPercentile(99.9)), millis(getMax()), getMean() / 1000000.0);
+    }
+
+    /**
+     * 清空数据，记录期间调用时结果可能不完整
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0L);
+        }
+        count.set(0L);
+        sum.set(0L);
+        min.set(Long.MAX_VALUE);
+        max.set(0L);
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        //value >>> shift落在[64, 128)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @param index
+     * @return 桶里能放的最大值
+     */
+    private static long highestOf(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return (sub << shift) + (1L << shift) - 1;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
@@ -0,0 +1,152 @@
+package distributedLock;
+
+import distributedLock.lock.DistributedLock;
+import distributedLock.lock.DistributedLockFactory;
+import distributedLock.lock.HierarchicalDistributedLock;
+import distributedLock.ConcurrentTestTool.ConcurrentTask;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessLock;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessReadWriteLock;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreV2;
+import org.apache.curator.framework.recipes.locks.Lease;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.utils.CloseableUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 用开环压测找出各种锁的饱和拐点，容量规划用这个数而不是闭环压测的平均值
+ * 对比本项目的锁和Curator的各种锁：InterProcessMutex、InterProcessSemaphoreMutex、
+ * InterProcessReadWriteLock的写锁和读锁(读锁之间不互斥，作为上限参考)、单许可的InterProcessSemaphoreV2
+ * 参数: [zookeeper服务地址，不填时启动进程内的EmbeddedZooKeeper] [锁类型,逗号分隔]
+ */
+public class LockRateSweep {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LockRateSweep.class);
+
+    private static final String[] LOCK_TYPES = {"DistributedLock", "HierarchicalDistributedLock", "InterProcessMutex",
+            "InterProcessSemaphoreMutex", "InterProcessReadWriteLock.write", "InterProcessReadWriteLock.read",
+            "InterProcessSemaphoreV2"};
+
+    /**
+     * 从低到高的目标速率(次/秒)
+     */
+    private static final double[] RATES = {250, 500, 1000, 2000, 4000, 8000};
+
+    private static final int THREADS = 64;
+
+    private static final long WARMUP_MILLIS = 2000;
+
+    private static final long MEASURE_MILLIS = 10000;
+
+    /**
+     * 可以接受的p99延迟
+     */
+    private static final double MAX_P99_MILLIS = 50;
+
+    public static void main(String[] args) throws Exception {
+        EmbeddedZooKeeper embedded = null;
+        final String config;
+        if (args.length > 0 && !args[0].isEmpty()) {
+            config = args[0];
+        } else {
+            embedded = new EmbeddedZooKeeper();
+            config = embedded.start();
+        }
+        String[] lockTypes = args.length > 1 ? args[1].split(",") : LOCK_TYPES;
+        DistributedLockFactory factory = new DistributedLockFactory();
+        CuratorFramework client = CuratorFrameworkFactory.newClient(config, 60000, 15000, new ExponentialBackoffRetry(1000, 3));
+        client.start();
+        Map<String, Double> knees = new LinkedHashMap<String, Double>();
+        try {
+            for (String lockType : lockTypes) {
+                LOGGER.info("=====" + lockType + "==========");
+                ConcurrentTask task = newTask(lockType, factory, client, config);
+                knees.put(lockType, OpenLoopTestTool.sweep(THREADS, RATES, WARMUP_MILLIS, MEASURE_MILLIS, MAX_P99_MILLIS, task));
+            }
+        } finally {
+            CloseableUtils.closeQuietly(client);
+            factory.close();
+            if (embedded != null) {
+                embedded.stop();
+            }
+        }
+        StringBuilder table = new StringBuilder(String.format("%n%-32s%16s", "lock", "knee(ops/sec)"));
+        for (Map.Entry<String, Double> entry : knees.entrySet()) {
+            table.append(String.format("%n%-32s%16.1f", entry.getKey(), entry.getValue()));
+        }
+        LOGGER.info("saturation knees (p99 <= " + MAX_P99_MILLIS + "ms):" + table);
+    }
+
+    /**
+     * @param lockType 锁类型
+     * @return 一次加锁解锁
+     */
+    private static ConcurrentTask newTask(String lockType, final DistributedLockFactory factory,
+                                          CuratorFramework client, final String config) {
+        String path = "/distributed-lock-sweep/" + lockType.replace('.', '-');
+        if ("DistributedLock".equals(lockType)) {
+            return new ConcurrentTask() {
+                @Override
+                public void run() {
+                    DistributedLock lock = factory.newLock(config, "sweep1");
+                    lock.lock();
+                    lock.unlock();
+                }
+            };
+        }
+        if ("HierarchicalDistributedLock".equals(lockType)) {
+            final HierarchicalDistributedLock hierarchicalLock = factory.getHierarchicalLock(config, "sweep2");
+            return new ConcurrentTask() {
+                @Override
+                public void run() {
+                    hierarchicalLock.lock();
+                    hierarchicalLock.unlock();
+                }
+            };
+        }
+        if ("InterProcessSemaphoreV2".equals(lockType)) {
+            final InterProcessSemaphoreV2 semaphore = new InterProcessSemaphoreV2(client, path, 1);
+            return new ConcurrentTask() {
+                @Override
+                public void run() {
+                    try {
+                        Lease lease = semaphore.acquire();
+                        semaphore.returnLease(lease);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+        final InterProcessLock lock;
+        if ("InterProcessMutex".equals(lockType)) {
+            lock = new InterProcessMutex(client, path);
+        } else if ("InterProcessSemaphoreMutex".equals(lockType)) {
+            lock = new InterProcessSemaphoreMutex(client, path);
+        } else if ("InterProcessReadWriteLock.write".equals(lockType)) {
+            lock = new InterProcessReadWriteLock(client, path).writeLock();
+        } else if ("InterProcessReadWriteLock.read".equals(lockType)) {
+            lock = new InterProcessReadWriteLock(client, path).readLock();
+        } else {
+            throw new IllegalArgumentException("unknown lockType: " + lockType);
+        }
+        return new ConcurrentTask() {
+            @Override
+            public void run() {
+                try {
+                    lock.acquire();
+                    lock.release();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+}
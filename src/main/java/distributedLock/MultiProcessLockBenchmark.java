@@ -0,0 +1,311 @@
+package distributedLock;
+
+import distributedLock.ConcurrentTestTool.ConcurrentTask;
+import distributedLock.lock.DistributedLock;
+import distributedLock.lock.DistributedLockFactory;
+import distributedLock.lock.HierarchicalDistributedLock;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多进程抢锁压测
+ * 同一个JVM里的线程共享GC停顿和session，看不出真实的跨进程行为。
+ * 这里在本机fork多个worker JVM，每个有自己的session，在zookeeper上的屏障处一起开始，
+ * 各自循环加解锁，结束后把延迟直方图打印到标准输出，由driver收集合并，输出整体分位数和各进程之间的公平性。
+ * 参数: [worker数] [每个worker的线程数] [测量毫秒数] [锁类型] [zookeeper服务地址]
+ * 锁类型: DistributedLock, HierarchicalDistributedLock, InterProcessMutex；不指定服务地址时启动进程内的zookeeper
+ */
+public class MultiProcessLockBenchmark {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MultiProcessLockBenchmark.class);
+
+    /**
+     * worker输出结果行的前缀
+     */
+    private static final String RESULT_PREFIX = "#RESULT ";
+
+    private static final String BARRIER_ROOT = "/bench-barrier";
+
+    private static final String START_NODE = "start";
+
+    private static final String READY_PREFIX = "ready-";
+
+    private static final long WARMUP_MILLIS = 3000;
+
+    private static final long READY_TIMEOUT_MILLIS = 60000;
+
+    private static final int SESSION_TIMEOUT = 30000;
+
+    /**
+     * worker退出后等读线程读完剩余输出的时间
+     */
+    private static final long READER_TIMEOUT_MILLIS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "worker".equals(args[0])) {
+            runWorker(args);
+        } else {
+            runDriver(args);
+        }
+    }
+
+    private static void runDriver(String[] args) throws Exception {
+        int workers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        long measureMillis = args.length > 2 ? Long.parseLong(args[2]) : 10000;
+        String lockType = args.length > 3 ? args[3] : "DistributedLock";
+        EmbeddedZooKeeper embedded = null;
+        String config;
+        if (args.length > 4) {
+            config = args[4];
+        } else {
+            embedded = new EmbeddedZooKeeper();
+            config = embedded.start();
+        }
+        ZooKeeper zk = connect(config);
+        List<Process> processes = new ArrayList<Process>();
+        List<Thread> readers = new ArrayList<Thread>();
+        final Map<Integer, String> results = new ConcurrentHashMap<Integer, String>();
+        try {
+            createIfAbsent(zk, BARRIER_ROOT);
+            String barrier = zk.create(BARRIER_ROOT + "/run-", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            for (int i = 0; i < workers; i++) {
+                ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        MultiProcessLockBenchmark.class.getName(), "worker", config, barrier, String.valueOf(i), lockType,
+                        String.valueOf(threads), String.valueOf(measureMillis));
+                builder.redirectErrorStream(true);
+                final Process process = builder.start();
+                processes.add(process);
+                final int id = i;
+                //一定要读完worker的输出，否则管道写满后worker会卡住
+                Thread reader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        collect(id, process, results);
+                    }
+                }, "worker-" + i + "-reader");
+                reader.setDaemon(true);
+                reader.start();
+                readers.add(reader);
+            }
+            awaitReady(zk, barrier, workers);
+            LOGGER.info(workers + " workers ready, start " + lockType + " x " + threads + " threads each");
+            zk.create(barrier + "/" + START_NODE, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            long timeout = WARMUP_MILLIS + measureMillis + READY_TIMEOUT_MILLIS;
+            for (Process process : processes) {
+                if (!process.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+                    LOGGER.error("worker did not finish in " + timeout + "ms, kill it");
+                    process.destroyForcibly();
+                }
+            }
+            //读线程可能还没处理完最后一行，worker退出后管道关闭，读线程读到结尾就结束
+            for (Thread reader : readers) {
+                reader.join(READER_TIMEOUT_MILLIS);
+                if (reader.isAlive()) {
+                    LOGGER.error(reader.getName() + " did not finish in " + READER_TIMEOUT_MILLIS + "ms");
+                }
+            }
+            report(results, workers);
+            zk.delete(barrier + "/" + START_NODE, -1);
+            zk.delete(barrier, -1);
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+            zk.close();
+            if (embedded != null) {
+                embedded.stop();
+            }
+        }
+    }
+
+    private static void collect(int id, Process process, Map<Integer, String> results) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    results.put(id, line.substring(RESULT_PREFIX.length()));
+                } else {
+                    LOGGER.debug("worker-" + id + ": " + line);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("read worker-" + id + " output error: ", e);
+        }
+    }
+
+    private static void awaitReady(ZooKeeper zk, String barrier, int workers) throws Exception {
+        long deadline = System.currentTimeMillis() + READY_TIMEOUT_MILLIS;
+        while (zk.getChildren(barrier, false).size() < workers) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("only " + zk.getChildren(barrier, false).size() + " of " + workers + " workers ready");
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * 合并各进程的直方图，输出整体分位数和公平性
+     * 公平性用Jain指数：(Σx)^2 / (n * Σx^2)，各进程吞吐完全相同时为1，只有一个进程拿到锁时为1/n
+     */
+    private static void report(Map<Integer, String> results, int workers) {
+        LatencyHistogram merged = new LatencyHistogram();
+        double total = 0;
+        double squares = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        long errors = 0;
+        StringBuilder table = new StringBuilder("\n  worker     ops/sec     p50(ms)     p99(ms)   p99.9(ms)    err");
+        for (Map.Entry<Integer, String> entry : new TreeMap<Integer, String>(results).entrySet()) {
+            //格式: 错误数 吞吐 直方图
+            String[] parts = entry.getValue().split(" ", 3);
+            long err = Long.parseLong(parts[0]);
+            double ops = Double.parseDouble(parts[1]);
+            LatencyHistogram histogram = LatencyHistogram.decode(parts[2]);
+            merged.merge(histogram);
+            total += ops;
+            squares += ops * ops;
+            min = Math.min(min, ops);
+            max = Math.max(max, ops);
+            errors += err;
+            table.append(String.format("%n%8d%12.1f%12.3f%12.3f%12.3f%7d", entry.getKey(), ops,
+                    histogram.getPercentile(50) / 1000000.0, histogram.getPercentile(99) / 1000000.0,
+                    histogram.getPercentile(99.9) / 1000000.0, err));
+        }
+        if (results.size() < workers) {
+            LOGGER.error("only " + results.size() + " of " + workers + " workers reported");
+        }
+        if (results.isEmpty()) {
+            return;
+        }
+        LOGGER.info("per worker:" + table);
+        LOGGER.info("merged " + merged.summary());
+        LOGGER.info(String.format("total %.1f ops/sec, err %d, worker ops/sec min %.1f max %.1f, Jain fairness %.3f",
+                total, errors, min, max, total * total / (results.size() * squares)));
+    }
+
+    private static void runWorker(String[] args) throws Exception {
+        final String config = args[1];
+        String barrier = args[2];
+        String id = args[3];
+        String lockType = args[4];
+        int threads = Integer.parseInt(args[5]);
+        long measureMillis = Long.parseLong(args[6]);
+        ZooKeeper zk = connect(config);
+        final DistributedLockFactory factory = new DistributedLockFactory();
+        CuratorFramework client = null;
+        ConcurrentTask task;
+        if ("DistributedLock".equals(lockType)) {
+            task = new ConcurrentTask() {
+                @Override
+                public void run() {
+                    DistributedLock lock = factory.newLock(config, "multi-process");
+                    lock.lock();
+                    lock.unlock();
+                }
+            };
+        } else if ("HierarchicalDistributedLock".equals(lockType)) {
+            final HierarchicalDistributedLock lock = factory.getHierarchicalLock(config, "multi-process");
+            task = new ConcurrentTask() {
+                @Override
+                public void run() {
+                    lock.lock();
+                    lock.unlock();
+                }
+            };
+        } else if ("InterProcessMutex".equals(lockType)) {
+            client = CuratorFrameworkFactory.newClient(config, 60000, 15000, new ExponentialBackoffRetry(1000, 3));
+            client.start();
+            client.blockUntilConnected();
+            final InterProcessMutex mutex = new InterProcessMutex(client, "/multi-process-mutex");
+            task = new ConcurrentTask() {
+                @Override
+                public void run() {
+                    try {
+                        mutex.acquire();
+                        mutex.release();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        } else {
+            throw new IllegalArgumentException("unknown lockType: " + lockType);
+        }
+        try {
+            //屏障：登记自己已就绪，等driver创建start节点
+            final CountDownLatch started = new CountDownLatch(1);
+            Watcher startWatcher = new Watcher() {
+                @Override
+                public void process(WatchedEvent event) {
+                    if (event.getType() == Event.EventType.NodeCreated) {
+                        started.countDown();
+                    }
+                }
+            };
+            if (zk.exists(barrier + "/" + START_NODE, startWatcher) != null) {
+                started.countDown();
+            }
+            zk.create(barrier + "/" + READY_PREFIX + id, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+            started.await();
+            ConcurrentTestTool tool = new ConcurrentTestTool(threads, WARMUP_MILLIS, measureMillis, task);
+            System.out.println(RESULT_PREFIX + tool.getErrors() + " " + tool.getOpsPerSecond() + " " + tool.getHistogram().encode());
+            System.out.flush();
+        } finally {
+            CloseableUtils.closeQuietly(client);
+            factory.close();
+            zk.close();
+        }
+        System.exit(0);
+    }
+
+    private static ZooKeeper connect(String config) throws IOException, InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper zk = new ZooKeeper(config, SESSION_TIMEOUT, new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                if (event.getState() == Event.KeeperState.SyncConnected) {
+                    connected.countDown();
+                }
+            }
+        });
+        if (!connected.await(SESSION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            zk.close();
+            throw new IOException("connect to " + config + " timeout");
+        }
+        return zk;
+    }
+
+    private static void createIfAbsent(ZooKeeper zk, String path) throws KeeperException, InterruptedException {
+        try {
+            zk.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+            //已存在
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package distributedLock;
+
+import distributedLock.ConcurrentTestTool.ConcurrentTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 开环(固定到达率)压测工具
+ * ConcurrentTestTool是闭环的：线程做完一次才发下一次，服务变慢时请求也跟着变少，
+ * 排队造成的等待不会出现在延迟里(coordinated omission)。
+ * 这里按目标速率给第i个请求排好计划开始时间 t0 + i/rate，工作线程按顺序领取，
+ * 延迟从计划开始时间算起，线程都忙时后面的请求在计划时间之后才开始，排队的时间也算进延迟。
+ * sweep()按一组速率依次压测，找出延迟开始失控的拐点
+ */
+public class OpenLoopTestTool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OpenLoopTestTool.class);
+
+    /**
+     * 实际吞吐低于目标速率的这个比例就认为已经饱和
+     */
+    private static final double SATURATED_RATIO = 0.95;
+
+    /**
+     * 目标速率(次/秒)
+     */
+    private final double rate;
+    /**
+     * 从计划开始时间算起的延迟
+     */
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    /**
+     * 从实际开始时间算起的执行时间，不含排队
+     */
+    private final LatencyHistogram serviceHistogram = new LatencyHistogram();
+    /**
+     * 下一个请求的序号
+     */
+    private final AtomicLong next = new AtomicLong();
+    /**
+     * 错误计数
+     */
+    private final AtomicInteger err = new AtomicInteger();
+    /**
+     * 测量阶段最后一个请求完成的时间(nanoTime)
+     */
+    private final AtomicLong lastEnd = new AtomicLong();
+    /**
+     * 测量阶段的开始时间
+     */
+    private long measureStart;
+    /**
+     * 测量阶段的结束时间，计划开始时间在这之后的请求不再发出
+     */
+    private long measureEnd;
+
+    /**
+     * 按固定速率压测，构造时执行
+     *
+     * @param threads       工作线程数，要足够多，否则线程不够本身就会造成排队
+     * @param rate          目标速率(次/秒)
+     * @param warmupMillis  预热时间，不记录
+     * @param measureMillis 测量时间
+     * @param task          每次请求执行的task
+     */
+    public OpenLoopTestTool(int threads, double rate, long warmupMillis, long measureMillis, final ConcurrentTask task) {
+        if (task == null || threads < 1 || rate <= 0) {
+            throw new IllegalArgumentException("task can not be null, threads and rate must be positive");
+        }
+        this.rate = rate;
+        final double intervalNanos = 1000000000.0 / rate;
+        final long t0 = System.nanoTime() + 10000000L;
+        this.measureStart = t0 + warmupMillis * 1000000L;
+        this.measureEnd = measureStart + measureMillis * 1000000L;
+        final CountDownLatch doneSignal = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        long intended = t0 + (long) (next.getAndIncrement() * intervalNanos);
+                        if (intended >= measureEnd) {
+                            break;
+                        }
+                        //还没到计划时间就等，已经过了说明在排队，马上执行
+                        long wait;
+                        while ((wait = intended - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        long start = System.nanoTime();
+                        boolean ok = true;
+                        try {
+                            task.run();
+                        } catch (Exception e) {
+                            ok = false;
+                        }
+                        long end = System.nanoTime();
+                        if (intended < measureStart) {
+                            continue;
+                        }
+                        if (ok) {
+                            histogram.record(end - intended);
+                            serviceHistogram.record(end - start);
+                        } else {
+                            err.getAndIncrement();
+                        }
+                        long last;
+                        while (end > (last = lastEnd.get()) && !lastEnd.compareAndSet(last, end)) {
+                            //重新比较
+                        }
+                    }
+                    doneSignal.countDown();
+                }
+            }, "open-loop-" + i).start();
+        }
+        try {
+            doneSignal.await();
+        } catch (InterruptedException e) {
+            LOGGER.error("open loop wait error: ", e);
+        }
+        LOGGER.info(String.format("rate %.1f/s: achieved %.1f ops/sec, err %d", rate, getOpsPerSecond(), err.get()));
+        LOGGER.info("  latency " + histogram.summary());
+        LOGGER.info("  service " + serviceHistogram.summary());
+    }
+
+    /**
+     * 按一组速率依次压测，找出饱和拐点：实际吞吐跟得上目标速率，并且p99不超过maxP99Millis的最高速率
+     *
+     * @param threads       工作线程数
+     * @param rates         从低到高的目标速率(次/秒)
+     * @param warmupMillis  每个速率的预热时间
+     * @param measureMillis 每个速率的测量时间
+     * @param maxP99Millis  可以接受的p99延迟
+     * @param task          每次请求执行的task
+     * @return 拐点速率，最低速率都不满足时为0
+     */
+    public static double sweep(int threads, double[] rates, long warmupMillis, long measureMillis,
+                               double maxP99Millis, ConcurrentTask task) {
+        double knee = 0;
+        StringBuilder table = new StringBuilder("\n      target    achieved     p50(ms)     p99(ms)   p99.9(ms)");
+        for (double rate : rates) {
+            OpenLoopTestTool tool = new OpenLoopTestTool(threads, rate, warmupMillis, measureMillis, task);
+            LatencyHistogram h = tool.getHistogram();
+            table.append(String.format("%n%12.1f%12.1f%12.3f%12.3f%12.3f", rate, tool.getOpsPerSecond(),
+                    h.getPercentile(50) / 1000000.0, h.getPercentile(99) / 1000000.0, h.getPercentile(99.9) / 1000000.0));
+            if (tool.getOpsPerSecond() < rate * SATURATED_RATIO || h.getPercentile(99) / 1000000.0 > maxP99Millis) {
+                //已经饱和，更高的速率没有必要再压
+                break;
+            }
+            knee = rate;
+        }
+        LOGGER.info("rate sweep:" + table);
+        LOGGER.info("saturation knee: " + knee + " ops/sec (p99 <= " + maxP99Millis + "ms)");
+        return knee;
+    }
+
+    /**
+     * @return 从计划开始时间算起的延迟
+     */
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * @return 不含排队的执行时间
+     */
+    public LatencyHistogram getServiceHistogram() {
+        return serviceHistogram;
+    }
+
+    /**
+     * @return 测量阶段实际完成的速率
+     */
+    public double getOpsPerSecond() {
+        long elapsed = Math.max(lastEnd.get(), measureEnd) - measureStart;
+        return elapsed <= 0 ? 0.0 : histogram.getCount() * 1000000000.0 / elapsed;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public int getErrors() {
+        return err.get();
+    }
+}
@@ -0,0 +1,167 @@
+package distributedLock;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 压测工具执行task的方式
+ * 默认每个task一个平台线程，并发几千以上就会受内存和调度的限制；
+ * 有界线程池和ForkJoinPool限制同时运行的task数，超出的排队等前面的做完；
+ * 虚拟线程每个task一个，但不占用系统线程，可以模拟十万级别的并发等待者，需要运行在支持虚拟线程的JDK上。
+ * 注意：有界线程池和ForkJoinPool下，循环压测实际的并发数是线程池的大小而不是指定的线程数
+ */
+public abstract class TaskExecution {
+
+    private final String name;
+
+    private TaskExecution(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 执行一个task
+     *
+     * @param task     要执行的task
+     * @param taskName 线程名，线程池执行时忽略
+     */
+    public abstract void execute(Runnable task, String taskName);
+
+    /**
+     * 所有task执行完之后调用，释放线程池
+     */
+    public void shutdown() {
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * 每个task一个平台线程，原来的方式
+     */
+    public static TaskExecution threadPerTask() {
+        return new TaskExecution("thread-per-task") {
+            @Override
+            public void execute(Runnable task, String taskName) {
+                new Thread(task, taskName).start();
+            }
+        };
+    }
+
+    /**
+     * 固定大小的线程池，队列无界
+     *
+     * @param threads 线程池大小
+     */
+    public static TaskExecution bounded(int threads) {
+        final AtomicInteger index = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bench-pool-" + index.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        return new ExecutorExecution("bounded-" + threads, executor);
+    }
+
+    /**
+     * ForkJoinPool，task阻塞时不会补充线程
+     *
+     * @param parallelism 并行度
+     */
+    public static TaskExecution forkJoin(int parallelism) {
+        return new ExecutorExecution("fork-join-" + parallelism, new ForkJoinPool(parallelism));
+    }
+
+    /**
+     * 每个task一个虚拟线程
+     *
+     * @throws UnsupportedOperationException 当前JDK不支持虚拟线程
+     */
+    public static TaskExecution virtualThreads() {
+        //项目按1.8编译，只能反射调用Executors.newVirtualThreadPerTaskExecutor()
+        Method method = virtualThreadFactoryMethod();
+        if (method == null) {
+            throw new UnsupportedOperationException("virtual threads not supported by java " + System.getProperty("java.version"));
+        }
+        try {
+            return new ExecutorExecution("virtual-threads", (ExecutorService) method.invoke(null));
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException("create virtual thread executor failed", e);
+        } catch (InvocationTargetException e) {
+            //预览版JDK没有打开--enable-preview时会抛UnsupportedOperationException
+            throw new UnsupportedOperationException("create virtual thread executor failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return 当前JDK是否支持虚拟线程
+     */
+    public static boolean isVirtualThreadSupported() {
+        Method method = virtualThreadFactoryMethod();
+        if (method == null) {
+            return false;
+        }
+        try {
+            ((ExecutorService) method.invoke(null)).shutdown();
+            return true;
+        } catch (IllegalAccessException e) {
+            return false;
+        } catch (InvocationTargetException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 支持的话用虚拟线程，否则每个task一个平台线程
+     */
+    public static TaskExecution virtualThreadsOrThreadPerTask() {
+        return isVirtualThreadSupported() ? virtualThreads() : threadPerTask();
+    }
+
+    private static Method virtualThreadFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 交给ExecutorService执行
+     */
+    private static class ExecutorExecution extends TaskExecution {
+
+        private final ExecutorService executor;
+
+        ExecutorExecution(String name, ExecutorService executor) {
+            super(name);
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable task, String taskName) {
+            executor.execute(task);
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+            try {
+                //task都已经结束，这里只是等线程退出
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package distributedLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 本地TCP转发，用来模拟客户端和服务端之间的网络分区
+ * partition()之后两个方向的数据都被丢弃，但连接不断开，和真实的网络分区一样只能靠超时发现；
+ * heal()恢复转发，并断开分区期间的所有连接，避免丢掉一半的数据包打乱协议
+ */
+public class TcpProxy {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TcpProxy.class);
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String targetHost;
+
+    private final int targetPort;
+
+    private final Set<Socket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    private volatile boolean partitioned;
+
+    private volatile boolean running;
+
+    private ServerSocket serverSocket;
+
+    public TcpProxy(String targetHost, int targetPort) {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+    }
+
+    /**
+     * 在随机端口上开始监听
+     *
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+        running = true;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "tcp-proxy-" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return 监听的端口
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * 开始丢弃数据
+     */
+    public void partition() {
+        partitioned = true;
+        LOGGER.info("proxy " + getPort() + " -> " + targetPort + " partitioned");
+    }
+
+    /**
+     * 恢复转发，断开分区期间的连接，客户端重连
+     */
+    public void heal() {
+        partitioned = false;
+        closeAll();
+        LOGGER.info("proxy " + getPort() + " -> " + targetPort + " healed");
+    }
+
+    public boolean isPartitioned() {
+        return partitioned;
+    }
+
+    /**
+     * 停止监听并断开所有连接
+     */
+    public synchronized void stop() {
+        running = false;
+        if (serverSocket != null) {
+            close(serverSocket);
+        }
+        closeAll();
+    }
+
+    /**
+     * @param proxies
+     * @return 经过这些proxy的zookeeper服务地址
+     */
+    public static String connectString(List<TcpProxy> proxies) {
+        StringBuilder builder = new StringBuilder();
+        for (TcpProxy proxy : proxies) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append("127.0.0.1:").append(proxy.getPort());
+        }
+        return builder.toString();
+    }
+
+    private void accept() {
+        while (running) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    LOGGER.warn("proxy " + getPort() + " accept error: ", e);
+                }
+                return;
+            }
+            Socket server = new Socket();
+            try {
+                server.connect(new InetSocketAddress(targetHost, targetPort));
+            } catch (IOException e) {
+                //目标节点停了，客户端会换下一个节点
+                close(client);
+                close(server);
+                continue;
+            }
+            sockets.add(client);
+            sockets.add(server);
+            pump(client, server);
+            pump(server, client);
+        }
+    }
+
+    private void pump(final Socket from, final Socket to) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        if (!partitioned) {
+                            out.write(buffer, 0, n);
+                            out.flush();
+                        }
+                    }
+                } catch (SocketException e) {
+                    //连接已断开
+                } catch (IOException e) {
+                    LOGGER.debug("proxy pump error: ", e);
+                } finally {
+                    close(from);
+                    close(to);
+                }
+            }
+        }, "tcp-proxy-pump-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void closeAll() {
+        for (Socket socket : sockets) {
+            close(socket);
+        }
+    }
+
+    private void close(Closeable closeable) {
+        if (closeable instanceof Socket) {
+            sockets.remove(closeable);
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOGGER.debug("close error: ", e);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package distributedLock;
 
 import distributedLock.lock.DistributedLock;
+import distributedLock.lock.DistributedLockFactory;
 import distributedLock.ConcurrentTestTool.ConcurrentTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,6 +15,11 @@ public class ZkTest1 {
 
     private static final String ZK2_CONFIG = "106.14.5.254:2192";
 
+    /**
+     * 10个task共用工厂里的session池，不再每个task建立一个session
+     */
+    private static final DistributedLockFactory LOCK_FACTORY = new DistributedLockFactory();
+
 
     public static void main(String[] args) {
         Runnable task1 = new Runnable() {
@@ -53,7 +59,7 @@ public class ZkTest1 {
                 public void run() {
                     DistributedLock lock = null;
                     try {
-                        lock = new DistributedLock(ZK2_CONFIG, "test2");
+                        lock = LOCK_FACTORY.newLock(ZK2_CONFIG, "test2");
                         lock.lock();
                         Thread.sleep(100);
                         LOGGER.info("taskI: " + Thread.currentThread().getName() + " ,Thread ID: " + Thread.currentThread().getId() + " running");
@@ -68,7 +74,7 @@ public class ZkTest1 {
         }
 
         new ConcurrentTestTool(tasks);
-
+        LOCK_FACTORY.close();
 
     }
 }
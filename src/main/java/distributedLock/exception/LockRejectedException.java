@@ -0,0 +1,14 @@
+package distributedLock.exception;
+
+/**
+ * 锁的等待队列过长，加锁请求被准入策略直接拒绝
+ */
+public class LockRejectedException extends LockException {
+
+    private static final long serialVersionUID = 1L;
+
+    public LockRejectedException(String message) {
+        super(message);
+    }
+
+}
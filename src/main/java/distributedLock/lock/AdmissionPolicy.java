@@ -0,0 +1,67 @@
+package distributedLock.lock;
+
+import distributedLock.exception.LockRejectedException;
+
+/**
+ * 加锁的准入策略
+ * 过载时排队的线程越积越多，每个都要等很久才失败，
+ * 这里在节点入队前按队列长度、入队后按实际位置各检查一次，队列深度或预计等待时间超过阈值时直接拒绝，快速失败
+ */
+public class AdmissionPolicy {
+
+    /**
+     * 不限制
+     */
+    public static final AdmissionPolicy UNLIMITED = new AdmissionPolicy(0, 0L);
+
+    /**
+     * 最大队列深度，0表示不限制
+     * 只算排在自己前面的节点和自己，后面的节点不影响自己的等待时间，
+     * 同时涌入的请求里排在前面的仍然可以进入
+     */
+    private final int maxQueueDepth;
+    /**
+     * 最大预计等待时间，0表示不限制
+     */
+    private final long maxEstimatedWaitMillis;
+
+    /**
+     * @param maxQueueDepth          最大队列深度(从队头数到自己)，0表示不限制
+     * @param maxEstimatedWaitMillis 最大预计等待时间，0表示不限制
+     */
+    public AdmissionPolicy(int maxQueueDepth, long maxEstimatedWaitMillis) {
+        if (maxQueueDepth < 0 || maxEstimatedWaitMillis < 0) {
+            throw new IllegalArgumentException("thresholds can not be negative: " + maxQueueDepth + ", " + maxEstimatedWaitMillis);
+        }
+        this.maxQueueDepth = maxQueueDepth;
+        this.maxEstimatedWaitMillis = maxEstimatedWaitMillis;
+    }
+
+    /**
+     * 检查是否允许继续排队
+     *
+     * @param lockName
+     * @param position            自己在队列中的位置，0是队头
+     * @param depth               整个队列的深度
+     * @param estimatedWaitMillis 预计等待时间，还没有统计数据时为-1
+     * @throws LockRejectedException 超过阈值
+     */
+    public void check(String lockName, int position, int depth, long estimatedWaitMillis) {
+        if (maxQueueDepth > 0 && position + 1 > maxQueueDepth) {
+            throw new LockRejectedException("lock " + lockName + " rejected, position " + position
+                    + " of queue depth " + depth + ", max depth " + maxQueueDepth);
+        }
+        if (maxEstimatedWaitMillis > 0 && estimatedWaitMillis > maxEstimatedWaitMillis) {
+            throw new LockRejectedException("lock " + lockName + " rejected, position " + position
+                    + ", estimated wait " + estimatedWaitMillis + "ms > " + maxEstimatedWaitMillis + "ms");
+        }
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long getMaxEstimatedWaitMillis() {
+        return maxEstimatedWaitMillis;
+    }
+}
@@ -0,0 +1,375 @@
+package distributedLock.lock;
+
+import distributedLock.exception.LockException;
+import distributedLock.exception.LockRejectedException;
+import org.apache.zookeeper.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 异步分布式锁
+ * 加锁的每一步(建目录、建节点、取子节点、监听前一个节点)都用zookeeper的异步接口和watcher驱动，
+ * 等待锁的过程中不占用任何线程，回调都在zookeeper的EventThread上执行，所以回调里不能有阻塞操作。
+ * 由DistributedLockFactory.lockAsync()创建，每次加锁一个实例
+ */
+class AsyncDistributedLock implements LockHandle {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncDistributedLock.class);
+
+    /**
+     * zk连接对象
+     */
+    private final ZooKeeper zk;
+    /**
+     * session的事件分发器，前一个节点的删除事件只通知到当前锁
+     */
+    private final WatchDispatcher dispatcher;
+    /**
+     * 竞争资源的标志
+     */
+    private final String lockName;
+    /**
+     * 当前lockName的目录
+     */
+    private final String lockDir;
+    /**
+     * 已确认存在的目录，和池中的同步锁共享
+     */
+    private final Set<String> knownDirs;
+    /**
+     * 借session的池，自己创建的节点在池中登记
+     */
+    private final ZkSessionPool pool;
+    /**
+     * 准入策略，创建节点前和第一次取到排队位置时各检查一次
+     */
+    private final AdmissionPolicy admissionPolicy;
+    /**
+     * 持有时间统计，用于估计等待时间
+     */
+    private final LockStats stats;
+    /**
+     * 入队后是否已经按实际位置检查过准入，只在EventThread上读写
+     */
+    private boolean positionAdmitted;
+    /**
+     * 加锁结果，拿到锁时以this完成
+     */
+    private final CompletableFuture<LockHandle> future = new CompletableFuture<LockHandle>();
+    /**
+     * 当前锁节点，节点创建成功前为null
+     */
+    private volatile String currNode;
+    /**
+     * 目录被删除后是否已经重建过，只重建一次
+     */
+    private boolean dirRecreated;
+
+    AsyncDistributedLock(ZkSessionPool pool, ZkSessionPool.Session session, String lockName,
+                         AdmissionPolicy admissionPolicy) {
+        this.zk = session.zk;
+        this.dispatcher = session.dispatcher;
+        this.lockName = lockName;
+        this.lockDir = DistributedLock.ROOT + "/" + lockName;
+        this.knownDirs = pool.knownDirs();
+        this.pool = pool;
+        this.admissionPolicy = admissionPolicy;
+        this.stats = pool.stats(lockName);
+    }
+
+    /**
+     * 开始加锁，立即返回
+     * 调用方取消返回的future时，已经创建的锁节点会被删除
+     * future在EventThread上完成，见DistributedLockFactory.lockAsync()
+     *
+     * @return 拿到锁时完成
+     */
+    CompletableFuture<LockHandle> start() {
+        if (lockName.isEmpty() || lockName.contains("/")) {
+            future.completeExceptionally(new LockException("锁名有误, lockName can not be empty or contains '/'"));
+            return future;
+        }
+        cleanUpOnFailure();
+        ensureDir(DistributedLock.ROOT);
+        return future;
+    }
+
+    /**
+     * 从已经创建好的锁节点开始排队，用于批量加锁时节点已经在一个事务里创建好的情况
+     * 节点由调用方在池中登记
+     *
+     * @param node 已创建的锁节点
+     * @return 拿到锁时完成
+     */
+    CompletableFuture<LockHandle> startWithNode(String node) {
+        currNode = node;
+        cleanUpOnFailure();
+        checkPosition();
+        return future;
+    }
+
+    private void cleanUpOnFailure() {
+        future.whenComplete((handle, e) -> {
+            //取消或失败时，不再需要已经创建的节点
+            if (e != null) {
+                deleteNode();
+            }
+        });
+    }
+
+    @Override
+    public String getLockName() {
+        return lockName;
+    }
+
+    /**
+     * @return 当前锁节点
+     */
+    String getNodePath() {
+        return currNode;
+    }
+
+    @Override
+    public void unlock() {
+        String node = currNode;
+        if (node == null) {
+            return;
+        }
+        try {
+            LOGGER.debug("unlock " + node);
+            //断线时重试到确认删除或session结束
+            LockNodeDeleter.delete(zk, node);
+        } catch (KeeperException e) {
+            //没能确认删除，节点只能交给池的清理任务
+            pool.unregisterNode(node);
+            throw new LockException(e);
+        } catch (InterruptedException e) {
+            pool.unregisterNode(node);
+            Thread.currentThread().interrupt();
+            throw new LockException(e);
+        }
+        pool.unregisterNode(node);
+        currNode = null;
+    }
+
+    @Override
+    public CompletableFuture<Void> unlockAsync() {
+        final CompletableFuture<Void> unlocked = new CompletableFuture<Void>();
+        final String node = currNode;
+        if (node == null) {
+            unlocked.complete(null);
+            return unlocked;
+        }
+        LOGGER.debug("unlock " + node);
+        LockNodeDeleter.deleteAsync(zk, node, pool, (rc, path, ctx) -> {
+            pool.unregisterNode(node);
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code == KeeperException.Code.OK) {
+                currNode = null;
+                unlocked.complete(null);
+            } else {
+                unlocked.completeExceptionally(new LockException(KeeperException.create(code, path)));
+            }
+        });
+        return unlocked;
+    }
+
+    /**
+     * 依次确认根目录和lockName目录存在，然后创建锁节点
+     *
+     * @param path 当前要确认的目录
+     */
+    private void ensureDir(final String path) {
+        if (knownDirs.contains(lockDir)) {
+            admitThenCreate();
+            return;
+        }
+        if (knownDirs.contains(path)) {
+            ensureDir(lockDir);
+            return;
+        }
+        zk.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, (rc, p, ctx, name) -> {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code != KeeperException.Code.OK && code != KeeperException.Code.NODEEXISTS) {
+                fail(code, p);
+                return;
+            }
+            knownDirs.add(p);
+            ensureDir(lockDir);
+        }, null);
+    }
+
+    /**
+     * 有准入策略时先按当前队列长度检查，过载时不创建节点，见DistributedLock.admitBeforeEnqueue()
+     */
+    private void admitThenCreate() {
+        if (admissionPolicy == AdmissionPolicy.UNLIMITED) {
+            createNode();
+            return;
+        }
+        zk.getChildren(lockDir, false, (rc, path, ctx, children) -> {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code == KeeperException.Code.OK) {
+                int ahead = 0;
+                for (String node : children) {
+                    if (node.startsWith(DistributedLock.NODE_PREFIX)) {
+                        ahead++;
+                    }
+                }
+                if (!admitted(ahead, ahead + 1)) {
+                    return;
+                }
+            } else if (code != KeeperException.Code.NONODE) {
+                //目录不存在时队列是空的，创建节点时会重建目录
+                fail(code, path);
+                return;
+            }
+            createNode();
+        }, null);
+    }
+
+    /**
+     * 按准入策略检查排队位置
+     *
+     * @param position 排队位置，0是队头
+     * @param depth    队列深度
+     * @return 是否允许排队，拒绝时future以LockRejectedException失败
+     */
+    private boolean admitted(int position, int depth) {
+        try {
+            admissionPolicy.check(lockName, position, depth, stats.estimateWaitMillis(position));
+            return true;
+        } catch (LockRejectedException e) {
+            future.completeExceptionally(e);
+            return false;
+        }
+    }
+
+    /**
+     * 创建临时有序节点
+     */
+    private void createNode() {
+        if (future.isDone()) {
+            return;
+        }
+        zk.create(lockDir + "/" + DistributedLock.NODE_PREFIX, new byte[0],
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL, (rc, path, ctx, name) -> {
+                    KeeperException.Code code = KeeperException.Code.get(rc);
+                    if (code == KeeperException.Code.NONODE && !dirRecreated) {
+                        //缓存里的目录已经被删除了，重建后再试一次
+                        dirRecreated = true;
+                        knownDirs.remove(lockDir);
+                        ensureDir(DistributedLock.ROOT);
+                        return;
+                    }
+                    if (code != KeeperException.Code.OK) {
+                        fail(code, path);
+                        return;
+                    }
+                    currNode = name;
+                    pool.registerNode(name, this);
+                    LOGGER.debug(currNode + " 已经创建");
+                    if (future.isDone()) {
+                        //创建期间被取消了
+                        deleteNode();
+                        return;
+                    }
+                    checkPosition();
+                }, null);
+    }
+
+    /**
+     * 取等待队列，当前节点最小则拿到锁，否则监听前一个节点
+     */
+    private void checkPosition() {
+        if (future.isDone()) {
+            return;
+        }
+        zk.getChildren(lockDir, false, (rc, path, ctx, children) -> {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code != KeeperException.Code.OK) {
+                fail(code, path);
+                return;
+            }
+            List<String> lockObjects = new ArrayList<String>();
+            for (String node : children) {
+                if (node.startsWith(DistributedLock.NODE_PREFIX)) {
+                    lockObjects.add(node);
+                }
+            }
+            Collections.sort(lockObjects);
+            String node = currNode;
+            if (node == null) {
+                //已经取消，节点已删除
+                return;
+            }
+            int index = Collections.binarySearch(lockObjects, node.substring(node.lastIndexOf("/") + 1));
+            if (index < 0) {
+                //自己的节点不见了，session已经失效
+                fail(KeeperException.Code.NONODE, node);
+            } else if (index == 0) {
+                LOGGER.debug(node + " 获得锁~");
+                if (!future.complete(this)) {
+                    deleteNode();
+                }
+            } else {
+                if (!positionAdmitted) {
+                    positionAdmitted = true;
+                    if (!admitted(index, lockObjects.size())) {
+                        return;
+                    }
+                }
+                watchPrevNode(lockDir + "/" + lockObjects.get(index - 1));
+            }
+        }, null);
+    }
+
+    /**
+     * 监听前一个节点，删除时重新检查排队位置
+     *
+     * @param prevNode
+     */
+    private void watchPrevNode(final String prevNode) {
+        Watcher watcher = event -> {
+            if (event.getType() != Watcher.Event.EventType.None) {
+                //唤醒后不直接认为拿到锁，前一个节点可能只是放弃排队，重新检查排队位置
+                LOGGER.debug("前一个锁：" + prevNode + "释放，当前锁：" + currNode + "重新检查");
+                checkPosition();
+            } else if (event.getState() == Watcher.Event.KeeperState.Expired) {
+                fail(KeeperException.Code.SESSIONEXPIRED, prevNode);
+            }
+        };
+        dispatcher.watchAsync(zk, prevNode, watcher, (rc, path, ctx, stat) -> {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code == KeeperException.Code.NONODE) {
+                //前一个节点在取队列后已经删除，不用等了
+                checkPosition();
+            } else if (code != KeeperException.Code.OK) {
+                fail(code, path);
+            } else {
+                LOGGER.debug(currNode + " waiting for " + prevNode);
+            }
+        });
+    }
+
+    private void fail(KeeperException.Code code, String path) {
+        future.completeExceptionally(new LockException(KeeperException.create(code, path)));
+    }
+
+    /**
+     * 异步删除当前节点，用于取消和失败的清理
+     */
+    private void deleteNode() {
+        String node = currNode;
+        if (node != null) {
+            currNode = null;
+            LockNodeDeleter.deleteAsync(zk, node, pool, (rc, path, ctx) -> pool.unregisterNode(path));
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package distributedLock.lock;
 
 import distributedLock.exception.LockException;
+import distributedLock.exception.LockRejectedException;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
@@ -9,31 +10,65 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 
 /**
  * 使用zookeeper和CountDownLatch写的分布式锁
+ * 可重入，持有线程再次加锁只在本地计数，不访问zookeeper
+ * 同一实例被多个线程共用时，其他线程先在本地等持有线程解锁，再去zookeeper排队
  */
 public class DistributedLock implements Lock, Watcher {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DistributedLock.class);
 
     /**
-     * zk连接对象
+     * 默认根目录
+     */
+    static final String ROOT = "/locks";
+    /**
+     * 锁节点名前缀，每个lockName的节点都放在自己的目录root/lockName下
+     */
+    static final String NODE_PREFIX = "lock-";
+    /**
+     * 非公平模式下持有锁的固定节点名
+     */
+    static final String OWNER_NODE = "owner";
+    /**
+     * lock()不限时等待
+     */
+    private static final long WAIT_FOREVER = -1L;
+
+    /**
+     * zk连接对象，池中的锁每次加锁前确认session还活着，过期了重新借
      */
     private ZooKeeper zk;
+    /**
+     * session的事件分发器，前一个节点的事件只通知到当前锁
+     */
+    private WatchDispatcher dispatcher;
     /**
      * 根
      */
-    private String root = "/locks";
+    private String root = ROOT;
     /**
      * 竞争资源的标志
      */
     private String lockName;
+    /**
+     * 当前lockName的目录，等待队列只在这个目录下
+     */
+    private String lockDir;
+    /**
+     * 已确认存在的目录，池中的锁共享同一个缓存，避免每次加锁都检查目录
+     */
+    private Set<String> knownDirs;
     /**
      * 等待前一个锁
      */
@@ -45,11 +80,57 @@ public class DistributedLock implements Lock, Watcher {
     /**
      * 等待前一个锁释放的门闩
      */
-    private CountDownLatch waitLatch;
+    private volatile CountDownLatch waitLatch;
+    /**
+     * 本地许可，currNode、waitPrevNode、waitLatch等每次加锁的状态只属于拿到许可的线程，
+     * 其他线程同时加锁时覆盖这些字段，持有线程解锁就会删掉别人的节点。
+     * 分层锁解锁的线程不一定是加锁的线程，所以用Semaphore而不是ReentrantLock
+     */
+    private final Semaphore localPermit = new Semaphore(1, true);
+    /**
+     * 持有锁的线程，用于重入判断
+     */
+    private volatile Thread owner;
+    /**
+     * 持有线程的重入次数，只由持有线程读写
+     */
+    private int holdCount;
+    /**
+     * 是否非公平模式
+     */
+    private volatile boolean unfair;
+    /**
+     * 准入策略，创建节点前和入队后各检查一次
+     */
+    private volatile AdmissionPolicy admissionPolicy = AdmissionPolicy.UNLIMITED;
+    /**
+     * 持有时间统计，池中同名的锁共享
+     */
+    private LockStats stats;
+    /**
+     * 最近一次检查时自己在队列中的位置，0是队头
+     */
+    private volatile int queuePosition = -1;
+    /**
+     * 最近一次检查时的队列深度
+     */
+    private volatile int queueDepth = -1;
+    /**
+     * 拿到锁的时间(nanoTime)
+     */
+    private long holdStart;
     /**
      * zk session超时时间
      */
     private int sessionTimeout = 30000;
+    /**
+     * session是否从池中借来，借来的session解锁时不关闭
+     */
+    private boolean pooledSession;
+    /**
+     * 借session的池，节点创建和删除时在池中登记，不是池中的锁时为null
+     */
+    private ZkSessionPool pool;
     /**
      * 记录zk lock初始化错误
      */
@@ -59,18 +140,23 @@ public class DistributedLock implements Lock, Watcher {
      * 创建分布式锁,使用前请确认config配置的zookeeper服务可用
      *
      * @param config
-     * @param lockName 竞争资源标志,lockName中不能包含单词lock
+     * @param lockName 竞争资源标志,lockName中不能包含/
      */
     public DistributedLock(String config, String lockName) {
         this.lockName = lockName;
+        this.lockDir = root + "/" + lockName;
+        this.knownDirs = new HashSet<String>();
+        this.stats = new LockStats();
         // 创建一个与服务器的连接
         try {
-            zk = new ZooKeeper(config, sessionTimeout, this);
+            dispatcher = new WatchDispatcher();
+            zk = new ZooKeeper(config, sessionTimeout, dispatcher);
             Stat stat = zk.exists(root, false);
             if (stat == null) {
                 // 创建根节点
                 zk.create(root, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
             }
+            knownDirs.add(root);
         } catch (IOException e) {
             initException.add(e);
         } catch (KeeperException e) {
@@ -81,17 +167,39 @@ public class DistributedLock implements Lock, Watcher {
     }
 
     /**
-     * zookeeper节点的监视器
+     * 使用session池创建分布式锁，由DistributedLockFactory调用
+     *
+     * @param pool
+     * @param lockName 竞争资源标志,lockName中不能包含/
+     */
+    DistributedLock(ZkSessionPool pool, String lockName) {
+        this.lockName = lockName;
+        this.lockDir = root + "/" + lockName;
+        this.knownDirs = pool.knownDirs();
+        this.pooledSession = true;
+        this.pool = pool;
+        this.stats = pool.stats(lockName);
+        try {
+            borrowSession();
+        } catch (LockException e) {
+            //不是永久错误，加锁时会重新借
+            LOGGER.warn("borrow session for " + lockName + " error, retry on lock: ", e);
+        }
+    }
+
+    /**
+     * 前一个节点的监视器，由WatchDispatcher只在前一个节点有事件时调用
      *
      * @param event
      */
     @Override
     public void process(WatchedEvent event) {
-        if (this.waitLatch != null) {
-            //如果前一个node被删除，代表锁释放
-            if (event.getType().getIntValue() == Event.EventType.NodeDeleted.getIntValue()) {
+        CountDownLatch latch = this.waitLatch;
+        if (latch != null) {
+            //前一个node被删除(或session过期)，唤醒等待线程，由它重新检查排队位置
+            if (event.getType() != Event.EventType.None || event.getState() == Event.KeeperState.Expired) {
                 //值为1的门闩减1，取消等待
-                this.waitLatch.countDown();
+                latch.countDown();
                 LOGGER.debug("前一个锁：" + waitPrevNode + "释放，当前锁：" + currNode + "取消挂起");
             }
         }
@@ -106,118 +214,581 @@ public class DistributedLock implements Lock, Watcher {
             //zk初始化失败，不能加锁，抛异常
             throw new LockException(initException.get(0));
         }
+        if (reenter()) {
+            return;
+        }
+        try {
+            localPermit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LockException(e);
+        }
+        boolean acquired = false;
         try {
-            if (this.tryLock()) {
+            if (this.acquireNode(true)) {
                 LOGGER.debug(Thread.currentThread().getName() + " ,Thread ID: " + Thread.currentThread().getId() + " " + currNode + " 获得锁~");
-                return;
             } else {
-                //这里的waitTime很有意义，就是分布式锁队列等待的最大时间
-                //如果超时，锁释放，整个队列余下的未执行完的线程都会继续运行
-                //所以，超时问题很严重，这限制了分布式锁的队列长度。
-                //大型应用，这里一定要更好的的设置等待队列=。=
-                waitForLock(waitPrevNode, sessionTimeout);//挂起线程，等待锁，直到zk session超时
+                //原来这里最多等sessionTimeout，超时后当作拿到锁继续运行，队列长了就会有多个线程同时进入临界区。
+                //现在一直等到拿到锁，session过期时会被唤醒，重新检查发现自己的节点不在了就抛异常
+                admit();
+                waitForLock(waitPrevNode, WAIT_FOREVER);
             }
-
+            setOwner();
+            acquired = true;
         } catch (KeeperException e) {
+            abandonNode();
             throw new LockException(e);
         } catch (InterruptedException e) {
+            abandonNode();
+            Thread.currentThread().interrupt();
             throw new LockException(e);
+        } catch (RuntimeException e) {
+            abandonNode();
+            throw e;
+        } finally {
+            if (!acquired) {
+                localPermit.release();
+            }
         }
     }
 
     /**
-     * 解锁
+     * 解锁，重入多少次就要解锁多少次，最后一次解锁才删除节点
      */
     @Override
     public void unlock() {
+        if (owner != Thread.currentThread()) {
+            throw new IllegalMonitorStateException("current thread does not hold lock " + lockName);
+        }
+        if (--holdCount > 0) {
+            return;
+        }
+        release();
+    }
+
+    /**
+     * 删除节点释放锁，不检查持有线程
+     * 分层锁在本地线程之间传递分布式锁，释放时的线程不一定是加锁的线程
+     */
+    void release() {
+        owner = null;
+        holdCount = 0;
+        stats.recordHold(System.nanoTime() - holdStart);
+        String node = currNode;
+        currNode = null;
         try {
-            LOGGER.debug("unlock " + currNode);
-            zk.delete(currNode, -1);
-            currNode = null;
-            zk.close();
+            LOGGER.debug("unlock " + node);
+            //断线时重试到确认删除或session结束，否则后面排队的锁会一直等
+            LockNodeDeleter.delete(zk, node);
+            untrackNode(node);
+            if (!pooledSession) {
+                zk.close();
+            }
         } catch (InterruptedException e) {
+            //没能确认删除，节点只能交给池的清理任务
+            untrackNode(node);
+            Thread.currentThread().interrupt();
             throw new LockException(e);
         } catch (KeeperException e) {
+            untrackNode(node);
             throw new LockException(e);
+        } finally {
+            localPermit.release();
         }
     }
 
     /**
-     * 尝试加锁(CORE方法)
+     * 尝试加锁，当前线程已经持有锁时只增加重入次数
      *
      * @return
      */
     @Override
     public boolean tryLock() {
+        if (reenter()) {
+            return true;
+        }
+        if (!localPermit.tryAcquire()) {
+            //本进程的其他线程持有或正在加锁
+            return false;
+        }
         try {
-            String splitStr = "_lock_";
-            if (lockName.contains(splitStr)) {
-                throw new LockException("锁名有误, lockName can not contains 'lock'");
+            //tryLock()不排队，不用检查准入
+            if (acquireNode(false)) {
+                setOwner();
+                return true;
             }
-            // 创建临时有序节点
-            currNode = zk.create(root + "/" + lockName + splitStr, new byte[0],
-                    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
-            LOGGER.debug(currNode + " 已经创建");
-            // 取所有子节点
-            List<String> subNodes = zk.getChildren(root, false);
-            // 取出所有lockName的锁
-            List<String> lockObjects = new ArrayList<String>();
-            for (String node : subNodes) {
-                //截取结点名的lockName头
-                String nodePrefix = node.split(splitStr)[0];
-                if (nodePrefix.equals(lockName)) {
-                    //是当前锁的watchers，把它加入lock list，作为等待队列
-                    lockObjects.add(node);
+        } catch (RuntimeException e) {
+            abandonNode();
+            localPermit.release();
+            throw e;
+        }
+        //没拿到锁，不在队列里留下节点
+        abandonNode();
+        localPermit.release();
+        return false;
+    }
+
+    /**
+     * @return 当前锁节点，没有节点时为null
+     */
+    String getCurrNode() {
+        return currNode;
+    }
+
+    /**
+     * 取当前lockName的所有锁节点并监听队列变化，队列有变化时通知waiter
+     *
+     * @param waiter
+     * @return 当前队列里的锁节点名
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    List<String> watchQueue(Watcher waiter) throws KeeperException, InterruptedException {
+        List<String> lockObjects = new ArrayList<String>();
+        for (String node : dispatcher.watchChildren(zk, lockDir, waiter)) {
+            if (node.startsWith(NODE_PREFIX)) {
+                lockObjects.add(node);
+            }
+        }
+        return lockObjects;
+    }
+
+    /**
+     * 取消watchQueue()注册的监听
+     *
+     * @param waiter
+     */
+    void unwatchQueue(Watcher waiter) {
+        dispatcher.unregister(lockDir, waiter);
+    }
+
+    /**
+     * @return 当前session是否连着，session过期或连接断开时节点可能已经不在了
+     */
+    boolean isConnected() {
+        ZooKeeper z = zk;
+        return z != null && z.getState().isConnected();
+    }
+
+    /**
+     * 设置非公平模式，加锁前设置
+     * 非公平模式先尝试创建固定的owner节点，没有竞争时一次请求就拿到锁；
+     * owner节点已存在时才进入公平的有序节点队列，排到队头后再等owner节点释放。
+     * 同一lockName的所有客户端必须使用相同的模式，公平模式的客户端不认owner节点
+     *
+     * @param unfair
+     */
+    public void setUnfair(boolean unfair) {
+        this.unfair = unfair;
+    }
+
+    public boolean isUnfair() {
+        return unfair;
+    }
+
+    /**
+     * 设置准入策略，排队位置超过阈值时lock()抛LockRejectedException，tryLock(timeout, unit)返回false
+     *
+     * @param admissionPolicy
+     */
+    public void setAdmissionPolicy(AdmissionPolicy admissionPolicy) {
+        this.admissionPolicy = admissionPolicy == null ? AdmissionPolicy.UNLIMITED : admissionPolicy;
+    }
+
+    public AdmissionPolicy getAdmissionPolicy() {
+        return admissionPolicy;
+    }
+
+    /**
+     * @return 最近一次加锁时自己在队列中的位置，0是队头，还没排过队时为-1
+     */
+    public int getQueuePosition() {
+        return queuePosition;
+    }
+
+    /**
+     * @return 最近一次加锁时的队列深度(包括持有锁的节点)，还没排过队时为-1
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * 按本进程观察到的平均持有时间估计，前面每个节点持有一次锁
+     *
+     * @return 最近一次加锁时的预计等待时间，没有数据时为-1
+     */
+    public long getEstimatedWaitMillis() {
+        int position = queuePosition;
+        return position < 0 ? -1L : stats.estimateWaitMillis(position);
+    }
+
+    /**
+     * @return 当前线程是否持有锁
+     */
+    public boolean isHeldByCurrentThread() {
+        return owner == Thread.currentThread();
+    }
+
+    /**
+     * @return 当前线程的重入次数，没有持有锁时为0
+     */
+    public int getHoldCount() {
+        return isHeldByCurrentThread() ? holdCount : 0;
+    }
+
+    /**
+     * 当前线程已经持有锁时，重入只在本地计数，不访问zookeeper
+     *
+     * @return 是否重入
+     */
+    private boolean reenter() {
+        if (owner == Thread.currentThread()) {
+            holdCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 要排队时先按准入策略检查队列是否已经太长
+     *
+     * @throws LockRejectedException 超过阈值
+     */
+    private void admit() {
+        admissionPolicy.check(lockName, queuePosition, queueDepth, getEstimatedWaitMillis());
+    }
+
+    /**
+     * 创建节点前按当前队列长度先检查一次准入
+     * 过载时被拒绝的请求不用再创建和删除一次节点，这两个写请求都要经过leader，正是准入要减掉的负载；
+     * 取子节点是读请求，由连接的服务器本地处理。不限制时跳过，不多这一次读。
+     * 同时涌入的请求可能都通过这次检查，入队后还会按实际位置再检查一次
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     * @throws LockRejectedException 超过阈值
+     */
+    private void admitBeforeEnqueue() throws KeeperException, InterruptedException {
+        if (admissionPolicy == AdmissionPolicy.UNLIMITED) {
+            return;
+        }
+        int ahead = 0;
+        try {
+            for (String node : zk.getChildren(lockDir, false)) {
+                if (node.startsWith(NODE_PREFIX)) {
+                    ahead++;
                 }
             }
-            //锁node name排序
-            Collections.sort(lockObjects);
-            LOGGER.debug(Thread.currentThread().getName() + " ,Thread ID: " + Thread.currentThread().getId() + " 的锁是： " + currNode + " ，当前锁是： " + lockObjects.get(0));
-            // 若当前节点为最小节点，则获取锁成功
-            if (currNode.equals(root + "/" + lockObjects.get(0))) {
-                //如果是最小的节点,则表示取得锁
+        } catch (KeeperException.NoNodeException e) {
+            //目录被清理了，队列是空的，创建节点时会重建目录
+        }
+        if (unfair) {
+            //走到这里说明owner节点已经被别人持有
+            ahead++;
+        }
+        queuePosition = ahead;
+        queueDepth = ahead + 1;
+        admit();
+    }
+
+    private void setOwner() {
+        owner = Thread.currentThread();
+        holdCount = 1;
+        holdStart = System.nanoTime();
+    }
+
+    /**
+     * 创建节点并检查排队位置(CORE方法)
+     *
+     * @param checkAdmission 要排队等待时为true，创建节点前先检查准入
+     * @return 是否取得锁
+     * @throws LockRejectedException 超过准入阈值
+     */
+    private boolean acquireNode(boolean checkAdmission) {
+        try {
+            if (lockName.isEmpty() || lockName.contains("/")) {
+                throw new LockException("锁名有误, lockName can not be empty or contains '/'");
+            }
+            ensureSession();
+            ensureLockDir();
+            if (unfair && tryCreateOwner()) {
+                queuePosition = 0;
+                queueDepth = 1;
+                //没有竞争，一次请求拿到锁
+                LOGGER.debug(currNode + " 已经创建，非公平直接获得锁");
                 return true;
             }
-
-            // 若不是最小节点，则找到自己的前一个节点
-            //取得当前结点的名字
-            String currNodeName = currNode.substring(currNode.lastIndexOf("/") + 1);
-            //取得当前结点index小1的前一个结点，作为等待结点
-            waitPrevNode = lockObjects.get(Collections.binarySearch(lockObjects, currNodeName) - 1);
+            if (checkAdmission) {
+                admitBeforeEnqueue();
+            }
+            // 创建临时有序节点
+            currNode = createNode(lockDir + "/" + NODE_PREFIX, CreateMode.EPHEMERAL_SEQUENTIAL);
+            LOGGER.debug(currNode + " 已经创建");
+            // 若取得锁则返回true，否则记下要等待的节点
+            waitPrevNode = checkAcquired();
+            return waitPrevNode == null;
         } catch (InterruptedException e) {
             throw new LockException(e);
         } catch (KeeperException e) {
             throw new LockException(e);
         }
-        return false;
+    }
+
+    /**
+     * 检查排队的节点是否取得锁
+     *
+     * @return 取得锁时返回null，否则返回要等待的节点名
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    private String checkAcquired() throws KeeperException, InterruptedException {
+        String prevNode = findPrevNode();
+        if (prevNode != null || !unfair) {
+            return prevNode;
+        }
+        //owner节点也算一个持有者
+        queuePosition++;
+        queueDepth++;
+        //非公平模式下排到队头后，还要等直接抢锁的持有者释放owner节点
+        String queueNode = currNode;
+        if (tryCreateOwner()) {
+            queuePosition = 0;
+            //队列里的节点不再需要，删掉后下一个排队的成为队头
+            LockNodeDeleter.delete(zk, queueNode);
+            untrackNode(queueNode);
+            LOGGER.debug(queueNode + " 排到队头，获得锁 " + currNode);
+            return null;
+        }
+        return OWNER_NODE;
+    }
+
+    /**
+     * 非公平模式下尝试创建固定的owner节点，创建成功即持有锁
+     *
+     * @return 是否创建成功
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    private boolean tryCreateOwner() throws KeeperException, InterruptedException {
+        try {
+            currNode = createNode(lockDir + "/" + OWNER_NODE, CreateMode.EPHEMERAL);
+            return true;
+        } catch (KeeperException.NodeExistsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 取等待队列，找到当前节点的前一个节点
+     *
+     * @return 当前节点是最小节点(取得锁)时返回null
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    private String findPrevNode() throws KeeperException, InterruptedException {
+        // 只取当前lockName目录下的子节点，就是当前锁的等待队列
+        List<String> subNodes = zk.getChildren(lockDir, false);
+        List<String> lockObjects = new ArrayList<String>();
+        for (String node : subNodes) {
+            if (node.startsWith(NODE_PREFIX)) {
+                lockObjects.add(node);
+            }
+        }
+        //锁node name排序
+        Collections.sort(lockObjects);
+        //取得当前结点的名字
+        String currNodeName = currNode.substring(currNode.lastIndexOf("/") + 1);
+        int index = Collections.binarySearch(lockObjects, currNodeName);
+        if (index < 0) {
+            throw new LockException("锁节点 " + currNode + " 已经不存在，session可能已经过期");
+        }
+        queuePosition = index;
+        queueDepth = lockObjects.size();
+        LOGGER.debug(Thread.currentThread().getName() + " ,Thread ID: " + Thread.currentThread().getId() + " 的锁是： " + currNode + " ，当前锁是： " + lockObjects.get(0));
+        if (index == 0) {
+            //如果是最小的节点,则表示取得锁
+            return null;
+        }
+        //取得当前结点index小1的前一个结点，作为等待结点
+        return lockObjects.get(index - 1);
+    }
+
+    /**
+     * 在lockName目录下创建临时节点
+     *
+     * @param path
+     * @param mode
+     * @return
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    private String createNode(String path, CreateMode mode) throws KeeperException, InterruptedException {
+        String node;
+        try {
+            node = zk.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, mode);
+        } catch (KeeperException.NoNodeException e) {
+            //缓存里的目录已经被删除了，重建后再试一次
+            knownDirs.remove(lockDir);
+            ensureLockDir();
+            node = zk.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, mode);
+        }
+        trackNode(node);
+        return node;
+    }
+
+    /**
+     * 加锁超时或失败时删除自己的节点，不在队列里留下没人等的节点
+     */
+    private void abandonNode() {
+        String node = currNode;
+        currNode = null;
+        waitPrevNode = null;
+        if (node == null) {
+            return;
+        }
+        try {
+            LockNodeDeleter.delete(zk, node);
+            LOGGER.debug("放弃排队，删除 " + node);
+        } catch (KeeperException e) {
+            LOGGER.warn("delete " + node + " error, leave it to the reaper: ", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //已确认删除，或者删除失败交给池的清理任务
+        untrackNode(node);
+    }
+
+    /**
+     * 池中的session过期后，池会在下次借出时重建，锁对象一直拿着旧session的话以后每次加锁都会SessionExpired，
+     * 所以池中的锁每次加锁前检查，旧session已经失效就重新借一个
+     */
+    private void ensureSession() {
+        if (pool != null && (zk == null || !zk.getState().isAlive())) {
+            borrowSession();
+        }
+    }
+
+    private void borrowSession() {
+        ZkSessionPool.Session session = pool.borrow();
+        zk = session.zk;
+        dispatcher = session.dispatcher;
+    }
+
+    private void trackNode(String node) {
+        if (pool != null) {
+            pool.registerNode(node, this);
+        }
+    }
+
+    private void untrackNode(String node) {
+        if (pool != null && node != null) {
+            pool.unregisterNode(node);
+        }
+    }
+
+    /**
+     * 确认根节点和lockName目录存在，确认过的目录记在knownDirs里，之后不再检查
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    private void ensureLockDir() throws KeeperException, InterruptedException {
+        ensureLockDir(zk, knownDirs, root, lockDir);
+    }
+
+    /**
+     * 确认根节点和lockName目录存在，同步加锁和批量加锁共用
+     *
+     * @param zk
+     * @param knownDirs 已确认存在的目录
+     * @param root
+     * @param lockDir
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    static void ensureLockDir(ZooKeeper zk, Set<String> knownDirs, String root, String lockDir)
+            throws KeeperException, InterruptedException {
+        if (knownDirs.contains(lockDir)) {
+            return;
+        }
+        if (!knownDirs.contains(root)) {
+            createDirIfAbsent(zk, root);
+            knownDirs.add(root);
+        }
+        createDirIfAbsent(zk, lockDir);
+        knownDirs.add(lockDir);
+    }
+
+    private static void createDirIfAbsent(ZooKeeper zk, String path) throws KeeperException, InterruptedException {
+        try {
+            zk.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+            //目录已存在
+        }
     }
 
     /**
      * 等待前一个锁释放
      *
      * @param prevNode
-     * @param waitTime
-     * @return
+     * @param waitTime 最长等待的毫秒数，WAIT_FOREVER表示不限时
+     * @return 是否拿到锁，超时返回false
      * @throws InterruptedException
      * @throws KeeperException
      */
     private boolean waitForLock(String prevNode, long waitTime) throws InterruptedException, KeeperException {
-        //判断比自己小一个数的节点是否存在,如果不存在则无需等待锁,同时注册监听
-        Stat stat = zk.exists(root + "/" + prevNode, true);
-        if (stat != null) {
-            LOGGER.debug(Thread.currentThread().getName() + " ,Thread ID: " + Thread.currentThread().getId() + " waiting for " + root + "/" + prevNode);
+        long deadline = System.currentTimeMillis() + waitTime;
+        while (true) {
+            String prevPath = lockDir + "/" + prevNode;
+            //先准备好门闩再注册监听，否则监听在门闩创建前触发，这次唤醒就丢了
             this.waitLatch = new CountDownLatch(1);
-            //挂起当前线程，等待一定时间waitTime，或者前一个node锁释放
-            this.waitLatch.await(waitTime, TimeUnit.MILLISECONDS);
+            //判断比自己小一个数的节点是否存在,如果不存在则无需等待锁,同时注册监听
+            //监听通过dispatcher注册，共享session时只有这个节点的事件会唤醒自己
+            Stat stat = dispatcher.watch(zk, prevPath, this);
+            if (stat != null) {
+                LOGGER.debug(Thread.currentThread().getName() + " ,Thread ID: " + Thread.currentThread().getId() + " waiting for " + prevPath);
+                //挂起当前线程，等待一定时间waitTime，或者前一个node锁释放
+                if (waitTime == WAIT_FOREVER) {
+                    try {
+                        this.waitLatch.await();
+                    } catch (InterruptedException e) {
+                        dispatcher.unregister(prevPath, this);
+                        this.waitLatch = null;
+                        throw e;
+                    }
+                } else {
+                    long remain = deadline - System.currentTimeMillis();
+                    boolean woken;
+                    try {
+                        woken = remain > 0 && this.waitLatch.await(remain, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        dispatcher.unregister(prevPath, this);
+                        this.waitLatch = null;
+                        throw e;
+                    }
+                    if (!woken) {
+                        //超时没拿到锁，由调用方删除节点
+                        dispatcher.unregister(prevPath, this);
+                        this.waitLatch = null;
+                        return false;
+                    }
+                }
+            }
             //清除阀门
             this.waitLatch = null;
+            //被唤醒不代表轮到自己，前一个节点可能只是放弃了排队，重新检查排队位置
+            prevNode = checkAcquired();
+            if (prevNode == null) {
+                return true;
+            }
+            waitPrevNode = prevNode;
         }
-        return true;
     }
 
 
     /**
-     * 尝试加锁，出错返回false
+     * 尝试加锁，超时或出错返回false，节点会被删除
      *
      * @param timeout
      * @param unit
@@ -225,15 +796,45 @@ public class DistributedLock implements Lock, Watcher {
      */
     @Override
     public boolean tryLock(long timeout, TimeUnit unit) {
+        if (reenter()) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + Math.max(0L, unit.toMillis(timeout));
+        try {
+            if (!localPermit.tryAcquire(timeout, unit)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        boolean interrupted = false;
         try {
-            if (this.tryLock()) {
+            boolean acquired = this.acquireNode(true);
+            if (!acquired) {
+                admit();
+                acquired = waitForLock(waitPrevNode, Math.max(0L, deadline - System.currentTimeMillis()));
+            }
+            if (acquired) {
+                setOwner();
                 return true;
             }
-            return waitForLock(waitPrevNode, timeout);
+            LOGGER.debug(lockName + " tryLock timeout after " + unit.toMillis(timeout) + "ms");
+        } catch (InterruptedException e) {
+            interrupted = true;
+            LOGGER.debug("tryLock interrupted: ", e);
+        } catch (LockRejectedException e) {
+            LOGGER.debug(e.getMessage());
         } catch (Exception e) {
             LOGGER.debug("tryLock fail: ", e);
-            return false;
         }
+        abandonNode();
+        localPermit.release();
+        if (interrupted) {
+            //删除节点后再恢复中断状态，否则删除请求也会被中断
+            Thread.currentThread().interrupt();
+        }
+        return false;
     }
 
     @Override
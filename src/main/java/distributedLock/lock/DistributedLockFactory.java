@@ -0,0 +1,281 @@
+package distributedLock.lock;
+
+import distributedLock.exception.LockException;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分布式锁工厂
+ * 每个zookeeper服务地址对应一个长连接session池，工厂创建的锁从池中借用session，
+ * 加锁解锁只需要节点操作，不再为每把锁建立和关闭一次session
+ */
+public class DistributedLockFactory {
+
+    /**
+     * 默认每个服务地址的session数
+     */
+    private static final int DEFAULT_POOL_SIZE = 4;
+    /**
+     * 默认清理无主锁节点的间隔
+     */
+    private static final long DEFAULT_REAP_INTERVAL_MILLIS = 60000L;
+
+    /**
+     * 每个服务地址的session数
+     */
+    private final int poolSize;
+    /**
+     * zk session超时时间
+     */
+    private final int sessionTimeout;
+    /**
+     * 清理无主锁节点的间隔
+     */
+    private final long reapIntervalMillis;
+    /**
+     * 新建锁的准入策略
+     */
+    private volatile AdmissionPolicy admissionPolicy = AdmissionPolicy.UNLIMITED;
+    /**
+     * 服务地址 -> session池
+     */
+    private final ConcurrentMap<String, ZkSessionPool> pools = new ConcurrentHashMap<String, ZkSessionPool>();
+    /**
+     * 服务地址 -> (lockName -> 进程内共享的分层锁)
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, HierarchicalDistributedLock>> hierarchicalLocks =
+            new ConcurrentHashMap<String, ConcurrentMap<String, HierarchicalDistributedLock>>();
+    /**
+     * 服务地址 -> (lockName -> 进程内共享的读写锁)
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, DistributedReadWriteLock>> readWriteLocks =
+            new ConcurrentHashMap<String, ConcurrentMap<String, DistributedReadWriteLock>>();
+
+    public DistributedLockFactory() {
+        this(DEFAULT_POOL_SIZE, 30000);
+    }
+
+    /**
+     * @param poolSize       每个服务地址的session数
+     * @param sessionTimeout zk session超时时间
+     */
+    public DistributedLockFactory(int poolSize, int sessionTimeout) {
+        this(poolSize, sessionTimeout, DEFAULT_REAP_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param poolSize           每个服务地址的session数
+     * @param sessionTimeout     zk session超时时间
+     * @param reapIntervalMillis 后台清理无主锁节点和空目录的间隔，0表示不清理
+     */
+    public DistributedLockFactory(int poolSize, int sessionTimeout, long reapIntervalMillis) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("poolSize must be positive: " + poolSize);
+        }
+        this.poolSize = poolSize;
+        this.sessionTimeout = sessionTimeout;
+        this.reapIntervalMillis = reapIntervalMillis;
+    }
+
+    /**
+     * 创建一把使用池中session的分布式锁，unlock不会关闭session
+     *
+     * @param config   zookeeper服务地址
+     * @param lockName 竞争资源标志,lockName中不能包含/
+     * @return
+     */
+    public DistributedLock newLock(String config, String lockName) {
+        DistributedLock lock = new DistributedLock(pool(config), lockName);
+        lock.setAdmissionPolicy(admissionPolicy);
+        return lock;
+    }
+
+    /**
+     * 设置准入策略，队列过长时快速失败
+     * 对之后newLock()、newUnfairLock()创建的锁，lockAsync()，以及之后第一次取到(新建)的分层锁和分段锁生效；
+     * 已经创建的共享分层锁沿用原来的策略，需要时调用它的setAdmissionPolicy()。批量加锁lockAll()不检查
+     *
+     * @param admissionPolicy
+     */
+    public void setAdmissionPolicy(AdmissionPolicy admissionPolicy) {
+        this.admissionPolicy = admissionPolicy == null ? AdmissionPolicy.UNLIMITED : admissionPolicy;
+    }
+
+    /**
+     * 创建一把非公平模式的分布式锁，没有竞争时一次请求就能拿到锁
+     * 同一lockName的所有客户端都要用非公平模式
+     *
+     * @param config   zookeeper服务地址
+     * @param lockName 竞争资源标志,lockName中不能包含/
+     * @return
+     */
+    public DistributedLock newUnfairLock(String config, String lockName) {
+        DistributedLock lock = newLock(config, lockName);
+        lock.setUnfair(true);
+        return lock;
+    }
+
+    /**
+     * 异步加锁，立即返回，等待期间不占用线程
+     * 取消返回的future会删除已经创建的锁节点
+     * 返回的future在zookeeper的EventThread上完成，thenApply/thenAccept等非Async的后续操作也在这个线程上执行。
+     * 同一session上所有的watcher和回调都排在这个线程上，后续操作里阻塞(包括同步加同一个池的锁)会卡住整个session，
+     * 甚至永远等不到回调。有阻塞操作时用thenApplyAsync/thenAcceptAsync等方法交给自己的线程池
+     *
+     * @param config   zookeeper服务地址
+     * @param lockName 竞争资源标志,lockName中不能包含/
+     * @return 拿到锁时完成
+     */
+    public CompletableFuture<LockHandle> lockAsync(String config, String lockName) {
+        ZkSessionPool pool = pool(config);
+        ZkSessionPool.Session session;
+        try {
+            session = pool.borrow();
+        } catch (LockException e) {
+            CompletableFuture<LockHandle> failed = new CompletableFuture<LockHandle>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return new AsyncDistributedLock(pool, session, lockName, admissionPolicy).start();
+    }
+
+    /**
+     * 批量加锁，所有节点在一个multi()事务里按lockName排序后一次创建，再并行等待
+     * 批量加锁之间不会因为加锁顺序不同而死锁
+     *
+     * @param config    zookeeper服务地址
+     * @param timeout   等待所有锁的最长时间，超时抛LockException，已创建的节点都会删除
+     * @param unit
+     * @param lockNames 竞争资源标志,lockName中不能包含/
+     * @return 拿到的所有锁，unlock()在一个事务里全部释放
+     */
+    public LockHandle lockAll(String config, long timeout, TimeUnit unit, String... lockNames) {
+        return MultiDistributedLock.lockAll(pool(config), timeout, unit, lockNames);
+    }
+
+    /**
+     * 取进程内共享的分层锁，同一lockName的线程先在本地排队，每个进程在zookeeper上最多只有一个节点
+     *
+     * @param config   zookeeper服务地址
+     * @param lockName 竞争资源标志,lockName中不能包含/
+     * @return
+     */
+    public HierarchicalDistributedLock getHierarchicalLock(String config, String lockName) {
+        ConcurrentMap<String, HierarchicalDistributedLock> locks = hierarchicalLocks.get(config);
+        if (locks == null) {
+            locks = new ConcurrentHashMap<String, HierarchicalDistributedLock>();
+            ConcurrentMap<String, HierarchicalDistributedLock> exist = hierarchicalLocks.putIfAbsent(config, locks);
+            if (exist != null) {
+                locks = exist;
+            }
+        }
+        HierarchicalDistributedLock lock = locks.get(lockName);
+        if (lock == null) {
+            lock = new HierarchicalDistributedLock(pool(config), lockName,
+                    HierarchicalDistributedLock.DEFAULT_MAX_LOCAL_HANDOFFS);
+            lock.setAdmissionPolicy(admissionPolicy);
+            HierarchicalDistributedLock exist = locks.putIfAbsent(lockName, lock);
+            if (exist != null) {
+                lock = exist;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * 创建分段锁，key哈希到stripeCount个段上，每段是一把进程内共享的分层锁
+     *
+     * @param config      zookeeper服务地址
+     * @param lockName    竞争资源标志,lockName中不能包含/
+     * @param stripeCount 段数，所有进程必须相同
+     * @return
+     */
+    public StripedDistributedLock newStripedLock(String config, String lockName, int stripeCount) {
+        return new StripedDistributedLock(this, config, lockName, stripeCount);
+    }
+
+    /**
+     * 创建乐观更新器，对单个节点数据的读-改-写不用加锁
+     *
+     * @param config zookeeper服务地址
+     * @return
+     */
+    public OptimisticUpdater newOptimisticUpdater(String config) {
+        return new OptimisticUpdater(pool(config));
+    }
+
+    /**
+     * 取进程内共享的读写锁，同一进程的读线程共用一个读节点
+     *
+     * @param config   zookeeper服务地址
+     * @param lockName 竞争资源标志,lockName中不能包含/
+     * @return
+     */
+    public DistributedReadWriteLock getReadWriteLock(String config, String lockName) {
+        ConcurrentMap<String, DistributedReadWriteLock> locks = readWriteLocks.get(config);
+        if (locks == null) {
+            locks = new ConcurrentHashMap<String, DistributedReadWriteLock>();
+            ConcurrentMap<String, DistributedReadWriteLock> exist = readWriteLocks.putIfAbsent(config, locks);
+            if (exist != null) {
+                locks = exist;
+            }
+        }
+        DistributedReadWriteLock lock = locks.get(lockName);
+        if (lock == null) {
+            lock = new DistributedReadWriteLock(pool(config), lockName);
+            DistributedReadWriteLock exist = locks.putIfAbsent(lockName, lock);
+            if (exist != null) {
+                lock = exist;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * 池中当前存活的zookeeper连接，只用于监控和故障演练(比如让session过期)，
+     * 不要关闭它们或者在上面注册watcher
+     *
+     * @param config zookeeper服务地址
+     * @return 还没有创建过session池时为空
+     */
+    public List<ZooKeeper> getSessions(String config) {
+        ZkSessionPool pool = pools.get(config);
+        return pool == null ? Collections.<ZooKeeper>emptyList() : pool.zooKeepers();
+    }
+
+    /**
+     * 取服务地址对应的session池，没有则创建
+     *
+     * @param config
+     * @return
+     */
+    ZkSessionPool pool(String config) {
+        ZkSessionPool pool = pools.get(config);
+        if (pool == null) {
+            pool = new ZkSessionPool(config, poolSize, sessionTimeout, reapIntervalMillis);
+            ZkSessionPool exist = pools.putIfAbsent(config, pool);
+            if (exist != null) {
+                pool = exist;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * 关闭所有session，工厂创建的锁随之失效
+     */
+    public void close() {
+        for (ZkSessionPool pool : pools.values()) {
+            pool.close();
+        }
+        pools.clear();
+        hierarchicalLocks.clear();
+        readWriteLocks.clear();
+    }
+}
@@ -0,0 +1,776 @@
+package distributedLock.lock;
+
+import distributedLock.exception.LockException;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 分布式读写锁
+ * 读节点read-和写节点write-放在同一个目录下，按序号排队：
+ * 写锁要排到队头，读锁只要前面没有写节点。
+ * 同一进程内的读线程共用一个读节点(一代)，第一个读线程去zookeeper排队，
+ * 之后的读线程只在本地计数，最后一个读线程解锁时才删除节点，读多写少时zookeeper上的开销和读线程数无关。
+ * <p>
+ * 本地读线程一直加入当前这一代时，排在后面的写锁可能一直等不到，
+ * setWriterPreferred(true)开启写优先：有写节点在排队时当前这一代不再接收新的读线程，
+ * 新来的读线程创建新的读节点排在写节点后面。开启后每代读节点多一个子节点监听，队列每次变化都要重新取一次。
+ * <p>
+ * 读锁可重入，写锁可重入，不支持读写之间的升级和降级。
+ * 一个进程内同一lockName只需要一个实例，由DistributedLockFactory.getReadWriteLock()共享，
+ * lockName不要和互斥锁共用
+ */
+public class DistributedReadWriteLock implements ReadWriteLock {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DistributedReadWriteLock.class);
+
+    /**
+     * 读节点名前缀
+     */
+    static final String READ_PREFIX = "read-";
+    /**
+     * 写节点名前缀
+     */
+    static final String WRITE_PREFIX = "write-";
+    /**
+     * zookeeper有序节点的序号长度
+     */
+    private static final int SEQUENCE_LENGTH = 10;
+    /**
+     * 不限时等待
+     */
+    private static final long NO_DEADLINE = Long.MIN_VALUE;
+    /**
+     * 读写节点前缀不同，按序号排序
+     */
+    private static final Comparator<String> BY_SEQUENCE = new Comparator<String>() {
+        @Override
+        public int compare(String o1, String o2) {
+            return o1.substring(o1.length() - SEQUENCE_LENGTH).compareTo(o2.substring(o2.length() - SEQUENCE_LENGTH));
+        }
+    };
+
+    /**
+     * 借session用的池
+     */
+    private final ZkSessionPool pool;
+    /**
+     * 竞争资源的标志
+     */
+    private final String lockName;
+    /**
+     * 当前lockName的目录
+     */
+    private final String lockDir;
+    /**
+     * 保护读节点代的状态
+     */
+    private final ReentrantLock state = new ReentrantLock();
+    /**
+     * 读节点代拿到锁或放弃时通知等待的读线程
+     */
+    private final Condition generationChanged = state.newCondition();
+    /**
+     * 当前可以加入的读节点代，没有时为null，只在持有state时读写
+     */
+    private ReadGeneration current;
+    /**
+     * 每个读线程持有的读节点代和重入次数
+     */
+    private final ThreadLocal<ReadHold> readHolds = new ThreadLocal<ReadHold>();
+    /**
+     * 本地写线程排队的公平锁，只有本地队头的写线程去zookeeper排队
+     */
+    private final ReentrantLock writeLocal = new ReentrantLock(true);
+    /**
+     * 当前持有的写节点，只在持有writeLocal时读写
+     */
+    private ZkNode writeNode;
+    /**
+     * 是否写优先
+     */
+    private volatile boolean writerPreferred;
+
+    private final Lock readLock = new ReadLock();
+
+    private final Lock writeLock = new WriteLock();
+
+    DistributedReadWriteLock(ZkSessionPool pool, String lockName) {
+        if (lockName.isEmpty() || lockName.contains("/")) {
+            throw new LockException("锁名有误, lockName can not be empty or contains '/'");
+        }
+        this.pool = pool;
+        this.lockName = lockName;
+        this.lockDir = DistributedLock.ROOT + "/" + lockName;
+    }
+
+    @Override
+    public Lock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public Lock writeLock() {
+        return writeLock;
+    }
+
+    /**
+     * 设置写优先
+     *
+     * @param writerPreferred
+     */
+    public void setWriterPreferred(boolean writerPreferred) {
+        this.writerPreferred = writerPreferred;
+    }
+
+    public boolean isWriterPreferred() {
+        return writerPreferred;
+    }
+
+    /**
+     * 加读锁
+     *
+     * @param deadline 截止时间(nanoTime)，NO_DEADLINE表示不限时
+     * @return 是否拿到锁，超时返回false
+     */
+    private boolean lockRead(long deadline) {
+        ReadHold hold = readHolds.get();
+        if (hold != null) {
+            hold.count++;
+            return true;
+        }
+        if (writeLocal.isHeldByCurrentThread()) {
+            //读节点会排在自己的写节点后面，永远等不到
+            throw new LockException("不支持持有写锁时加读锁, lockName: " + lockName);
+        }
+        while (true) {
+            ReadGeneration gen;
+            boolean creator = false;
+            state.lock();
+            try {
+                gen = current;
+                if (gen != null && !gen.isLive()) {
+                    //session已过期(或连接断开，服务端可能已经让它过期)，读节点已经不在了，远程的写锁可能已经拿到锁
+                    LOGGER.warn(lockName + " 读节点 " + gen.node.path + " 的session已失效，不再加入这一代");
+                    current = null;
+                    gen = null;
+                }
+                if (gen == null) {
+                    gen = new ReadGeneration();
+                    current = gen;
+                    creator = true;
+                }
+                gen.readers++;
+            } finally {
+                state.unlock();
+            }
+            boolean acquired = false;
+            try {
+                acquired = creator ? acquireGeneration(gen, deadline) : awaitGeneration(gen, deadline);
+            } finally {
+                if (acquired) {
+                    readHolds.set(new ReadHold(gen));
+                } else {
+                    leave(gen);
+                }
+            }
+            if (acquired) {
+                return true;
+            }
+            if (deadline != NO_DEADLINE && deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            //这一代的排队线程超时放弃了，自己还没到截止时间，重新加入
+        }
+    }
+
+    /**
+     * 创建这一代的读节点并排队
+     *
+     * @param gen
+     * @param deadline
+     * @return 是否拿到锁
+     */
+    private boolean acquireGeneration(ReadGeneration gen, long deadline) {
+        ZkNode node;
+        try {
+            node = acquireNode(READ_PREFIX, deadline);
+        } catch (LockException e) {
+            abandon(gen, e);
+            throw e;
+        }
+        state.lock();
+        try {
+            if (node == null) {
+                abandon(gen, null);
+                return false;
+            }
+            gen.node = node;
+            gen.status = ReadGeneration.ACQUIRED;
+            generationChanged.signalAll();
+        } finally {
+            state.unlock();
+        }
+        LOGGER.debug(node.path + " 读锁获得~");
+        if (writerPreferred) {
+            watchWriters(gen);
+        }
+        return true;
+    }
+
+    /**
+     * 等待这一代的第一个读线程拿到锁
+     *
+     * @param gen
+     * @param deadline
+     * @return 是否拿到锁，这一代被放弃时返回false
+     */
+    private boolean awaitGeneration(ReadGeneration gen, long deadline) {
+        state.lock();
+        try {
+            while (gen.status == ReadGeneration.PENDING) {
+                if (deadline == NO_DEADLINE) {
+                    generationChanged.awaitUninterruptibly();
+                } else {
+                    long remain = deadline - System.nanoTime();
+                    if (remain <= 0) {
+                        return false;
+                    }
+                    generationChanged.awaitNanos(remain);
+                }
+            }
+            if (gen.status == ReadGeneration.ACQUIRED) {
+                return true;
+            }
+            if (gen.failure != null) {
+                throw gen.failure;
+            }
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LockException(e);
+        } finally {
+            state.unlock();
+        }
+    }
+
+    /**
+     * 放弃还没拿到锁的一代，已加入的读线程重新排队或失败
+     *
+     * @param gen
+     * @param failure 出错时的异常，超时为null
+     */
+    private void abandon(ReadGeneration gen, LockException failure) {
+        state.lock();
+        try {
+            gen.status = ReadGeneration.ABANDONED;
+            gen.failure = failure;
+            if (current == gen) {
+                current = null;
+            }
+            generationChanged.signalAll();
+        } finally {
+            state.unlock();
+        }
+    }
+
+    /**
+     * 读线程离开这一代，最后一个离开的删除读节点
+     *
+     * @param gen
+     */
+    private void leave(ReadGeneration gen) {
+        ZkNode node = null;
+        state.lock();
+        try {
+            if (--gen.readers == 0 && gen.status == ReadGeneration.ACQUIRED) {
+                gen.status = ReadGeneration.RELEASED;
+                if (current == gen) {
+                    current = null;
+                }
+                node = gen.node;
+            }
+        } finally {
+            state.unlock();
+        }
+        if (node != null) {
+            LOGGER.debug("unlock " + node.path);
+            deleteNode(node, true);
+        }
+    }
+
+    private void unlockRead() {
+        ReadHold hold = readHolds.get();
+        if (hold == null) {
+            throw new IllegalMonitorStateException("current thread does not hold read lock " + lockName);
+        }
+        if (--hold.count > 0) {
+            return;
+        }
+        readHolds.remove();
+        leave(hold.gen);
+    }
+
+    /**
+     * 关闭当前这一代，之后的读线程创建新的读节点排队
+     * 写优先时有写锁在排队，或者这一代的读节点已经不在了(session过期)时调用
+     *
+     * @param gen 要关闭的一代
+     */
+    private void closeGeneration(ReadGeneration gen) {
+        state.lock();
+        try {
+            if (current == gen) {
+                current = null;
+                LOGGER.debug(lockName + " 读节点 " + (gen.node == null ? "" : gen.node.path) + " 不再接收新的读线程");
+            }
+        } finally {
+            state.unlock();
+        }
+    }
+
+    /**
+     * 写优先时监听队列，拿到锁的读节点后面出现写节点就关闭这一代
+     * 拿到读锁时前面没有写节点，这时队列里的写节点都在后面排队。
+     * 自己的读节点不见了、session过期或者监听失败时也关闭这一代，不能再往里加读线程
+     *
+     * @param gen
+     */
+    private void watchWriters(final ReadGeneration gen) {
+        state.lock();
+        try {
+            if (current != gen) {
+                return;
+            }
+        } finally {
+            state.unlock();
+        }
+        Watcher watcher = event -> {
+            if (event.getType() == Watcher.Event.EventType.None && event.getState() != Watcher.Event.KeeperState.Expired) {
+                return;
+            }
+            //在zookeeper的EventThread上，不能阻塞，交给后台线程处理
+            try {
+                if (event.getType() == Watcher.Event.EventType.None) {
+                    //session过期，读节点已经被删除
+                    pool.scheduler().execute(() -> closeGeneration(gen));
+                } else {
+                    pool.scheduler().execute(() -> watchWriters(gen));
+                }
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug(lockName + " 写优先检查被拒绝，池已关闭");
+            }
+        };
+        ZkSessionPool.Session session = gen.node.session;
+        String self = gen.node.path.substring(gen.node.path.lastIndexOf("/") + 1);
+        try {
+            List<String> children = session.dispatcher.watchChildren(session.zk, lockDir, watcher);
+            if (!children.contains(self)) {
+                session.dispatcher.unregister(lockDir, watcher);
+                LOGGER.warn(lockName + " 读节点 " + gen.node.path + " 已经不在了，session可能已经过期");
+                closeGeneration(gen);
+                return;
+            }
+            for (String child : children) {
+                if (child.startsWith(WRITE_PREFIX)) {
+                    session.dispatcher.unregister(lockDir, watcher);
+                    closeGeneration(gen);
+                    return;
+                }
+            }
+        } catch (KeeperException e) {
+            //SessionExpired、NoNode，或者断线没监听上，都不能确认这一代还能接收读线程
+            LOGGER.debug(lockName + " watch writers error: ", e);
+            closeGeneration(gen);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeGeneration(gen);
+        }
+    }
+
+    /**
+     * 加写锁
+     *
+     * @param deadline 截止时间(nanoTime)，NO_DEADLINE表示不限时
+     * @return 是否拿到锁，超时返回false
+     */
+    private boolean lockWrite(long deadline) {
+        if (writeLocal.isHeldByCurrentThread()) {
+            writeLocal.lock();
+            return true;
+        }
+        if (readHolds.get() != null) {
+            //写节点会排在自己的读节点后面，永远等不到
+            throw new LockException("不支持持有读锁时加写锁, lockName: " + lockName);
+        }
+        if (deadline == NO_DEADLINE) {
+            writeLocal.lock();
+        } else {
+            try {
+                if (!writeLocal.tryLock(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LockException(e);
+            }
+        }
+        try {
+            if (writerPreferred) {
+                state.lock();
+                try {
+                    if (current != null) {
+                        closeGeneration(current);
+                    }
+                } finally {
+                    state.unlock();
+                }
+            }
+            ZkNode node = acquireNode(WRITE_PREFIX, deadline);
+            if (node == null) {
+                writeLocal.unlock();
+                return false;
+            }
+            writeNode = node;
+            LOGGER.debug(node.path + " 写锁获得~");
+            return true;
+        } catch (RuntimeException e) {
+            writeLocal.unlock();
+            throw e;
+        }
+    }
+
+    private void unlockWrite() {
+        if (!writeLocal.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("current thread does not hold write lock " + lockName);
+        }
+        try {
+            if (writeLocal.getHoldCount() == 1) {
+                ZkNode node = writeNode;
+                writeNode = null;
+                LOGGER.debug("unlock " + node.path);
+                deleteNode(node, true);
+            }
+        } finally {
+            writeLocal.unlock();
+        }
+    }
+
+    /**
+     * 创建读或写节点并排队
+     *
+     * @param prefix   READ_PREFIX或WRITE_PREFIX
+     * @param deadline 截止时间(nanoTime)，NO_DEADLINE表示不限时
+     * @return 拿到锁的节点，超时返回null，节点已删除
+     */
+    private ZkNode acquireNode(String prefix, long deadline) {
+        ZkSessionPool.Session session = pool.borrow();
+        ZooKeeper zk = session.zk;
+        ZkNode node = null;
+        boolean acquired = false;
+        boolean interrupted = false;
+        try {
+            node = new ZkNode(session, createNode(zk, prefix));
+            pool.registerNode(node.path, this);
+            while (true) {
+                String blocker = findBlocker(zk, node.path, WRITE_PREFIX.equals(prefix));
+                if (blocker == null) {
+                    acquired = true;
+                    return node;
+                }
+                String blockerPath = lockDir + "/" + blocker;
+                final CountDownLatch latch = new CountDownLatch(1);
+                Watcher waiter = event -> {
+                    if (event.getType() != Watcher.Event.EventType.None || event.getState() == Watcher.Event.KeeperState.Expired) {
+                        latch.countDown();
+                    }
+                };
+                if (session.dispatcher.watch(zk, blockerPath, waiter) == null) {
+                    //前面的节点已经删除，重新检查
+                    continue;
+                }
+                boolean woken = false;
+                try {
+                    woken = await(latch, deadline);
+                } finally {
+                    if (!woken) {
+                        session.dispatcher.unregister(blockerPath, waiter);
+                    }
+                }
+                if (!woken) {
+                    LOGGER.debug(node.path + " 等待 " + blockerPath + " 超时");
+                    return null;
+                }
+            }
+        } catch (KeeperException e) {
+            throw new LockException(e);
+        } catch (InterruptedException e) {
+            interrupted = true;
+            throw new LockException(e);
+        } finally {
+            if (!acquired && node != null) {
+                //超时或失败，不在队列里留下节点
+                deleteNode(node, false);
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static boolean await(CountDownLatch latch, long deadline) throws InterruptedException {
+        if (deadline == NO_DEADLINE) {
+            latch.await();
+            return true;
+        }
+        long remain = deadline - System.nanoTime();
+        return remain > 0 && latch.await(remain, TimeUnit.NANOSECONDS);
+    }
+
+    private String createNode(ZooKeeper zk, String prefix) throws KeeperException, InterruptedException {
+        DistributedLock.ensureLockDir(zk, pool.knownDirs(), DistributedLock.ROOT, lockDir);
+        try {
+            return zk.create(lockDir + "/" + prefix, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        } catch (KeeperException.NoNodeException e) {
+            //缓存里的目录已经被删除了，重建后再试一次
+            pool.knownDirs().remove(lockDir);
+            DistributedLock.ensureLockDir(zk, pool.knownDirs(), DistributedLock.ROOT, lockDir);
+            return zk.create(lockDir + "/" + prefix, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        }
+    }
+
+    /**
+     * 取等待队列，找到挡住自己的节点
+     * 写节点等前一个节点，读节点等前面最近的写节点
+     *
+     * @param zk
+     * @param node      自己的节点
+     * @param exclusive 是否写节点
+     * @return 拿到锁时返回null
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    private String findBlocker(ZooKeeper zk, String node, boolean exclusive) throws KeeperException, InterruptedException {
+        List<String> queue = new ArrayList<String>();
+        for (String child : zk.getChildren(lockDir, false)) {
+            if (child.startsWith(READ_PREFIX) || child.startsWith(WRITE_PREFIX)) {
+                queue.add(child);
+            }
+        }
+        Collections.sort(queue, BY_SEQUENCE);
+        int index = queue.indexOf(node.substring(node.lastIndexOf("/") + 1));
+        if (index < 0) {
+            throw new LockException("锁节点 " + node + " 已经不存在，session可能已经过期");
+        }
+        if (exclusive) {
+            return index == 0 ? null : queue.get(index - 1);
+        }
+        for (int i = index - 1; i >= 0; i--) {
+            if (queue.get(i).startsWith(WRITE_PREFIX)) {
+                return queue.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 删除节点
+     *
+     * @param node
+     * @param rethrow 解锁时抛出删除失败，放弃排队时只记日志
+     */
+    private void deleteNode(ZkNode node, boolean rethrow) {
+        try {
+            //断线时重试到确认删除或session结束，否则后面排队的锁会一直等
+            LockNodeDeleter.delete(node.session.zk, node.path);
+        } catch (KeeperException e) {
+            //没能确认删除，节点只能交给池的清理任务
+            pool.unregisterNode(node.path);
+            if (rethrow) {
+                throw new LockException(e);
+            }
+            LOGGER.warn("delete " + node.path + " error, leave it to the reaper: ", e);
+            return;
+        } catch (InterruptedException e) {
+            pool.unregisterNode(node.path);
+            Thread.currentThread().interrupt();
+            if (rethrow) {
+                throw new LockException(e);
+            }
+            return;
+        }
+        pool.unregisterNode(node.path);
+    }
+
+    /**
+     * 读锁
+     */
+    private class ReadLock implements Lock {
+
+        @Override
+        public void lock() {
+            lockRead(NO_DEADLINE);
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            lock();
+        }
+
+        @Override
+        public boolean tryLock() {
+            return tryLock(0, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 尝试加读锁，超时或出错返回false
+         */
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) {
+            try {
+                return lockRead(System.nanoTime() + unit.toNanos(time));
+            } catch (LockException e) {
+                LOGGER.debug("tryLock read fail: ", e);
+                return false;
+            }
+        }
+
+        @Override
+        public void unlock() {
+            unlockRead();
+        }
+
+        //没用到
+        @Override
+        public Condition newCondition() {
+            return null;
+        }
+    }
+
+    /**
+     * 写锁
+     */
+    private class WriteLock implements Lock {
+
+        @Override
+        public void lock() {
+            lockWrite(NO_DEADLINE);
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            lock();
+        }
+
+        @Override
+        public boolean tryLock() {
+            return tryLock(0, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 尝试加写锁，超时或出错返回false
+         */
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) {
+            try {
+                return lockWrite(System.nanoTime() + unit.toNanos(time));
+            } catch (LockException e) {
+                LOGGER.debug("tryLock write fail: ", e);
+                return false;
+            }
+        }
+
+        @Override
+        public void unlock() {
+            unlockWrite();
+        }
+
+        //没用到
+        @Override
+        public Condition newCondition() {
+            return null;
+        }
+    }
+
+    /**
+     * 进程内共用一个读节点的一代读线程，字段只在持有state时读写
+     */
+    private static class ReadGeneration {
+
+        static final int PENDING = 0;
+
+        static final int ACQUIRED = 1;
+
+        static final int ABANDONED = 2;
+
+        static final int RELEASED = 3;
+
+        int status = PENDING;
+        /**
+         * 已加入(持有或等待)的读线程数
+         */
+        int readers;
+        /**
+         * 拿到锁后的读节点
+         */
+        ZkNode node;
+        /**
+         * 排队出错时的异常，加入的读线程都抛出
+         */
+        LockException failure;
+
+        /**
+         * 新的读线程加入前检查，还没拿到锁的一代由排队的线程负责
+         *
+         * @return 读节点的session是否还连着，session过期或连接断开时读节点可能已经不在了
+         */
+        boolean isLive() {
+            return status != ACQUIRED || node.session.zk.getState().isConnected();
+        }
+    }
+
+    /**
+     * 读线程持有的一代和重入次数
+     */
+    private static class ReadHold {
+
+        final ReadGeneration gen;
+
+        int count = 1;
+
+        ReadHold(ReadGeneration gen) {
+            this.gen = gen;
+        }
+    }
+
+    /**
+     * 节点和创建它的session
+     */
+    private static class ZkNode {
+
+        final ZkSessionPool.Session session;
+
+        final String path;
+
+        ZkNode(ZkSessionPool.Session session, String path) {
+            this.session = session;
+            this.path = path;
+        }
+    }
+}
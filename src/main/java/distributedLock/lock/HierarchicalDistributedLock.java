@@ -0,0 +1,565 @@
+package distributedLock.lock;
+
+import distributedLock.exception.LockException;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 分层分布式锁
+ * 同一进程内的线程先在本地锁上排队，只有本地队头的线程参与zookeeper的排队，
+ * 进程拿到分布式锁后，直接在本地线程之间传递，不再删除和创建节点。
+ * 一个进程内同一lockName只需要一个实例，由DistributedLockFactory.getHierarchicalLock()共享。
+ * <p>
+ * 可选的保留模式(类似偏向锁)：setRetainMillis()设置保留时间后，最后一个本地线程解锁时不删除节点，
+ * 保留期内本进程再次加锁直接复用节点，没有任何zookeeper写操作。
+ * 保留期间监听等待队列，一旦有其他进程排到后面就立即释放节点。
+ */
+public class HierarchicalDistributedLock implements Lock {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HierarchicalDistributedLock.class);
+
+    /**
+     * 默认本地连续传递的最大次数
+     */
+    static final int DEFAULT_MAX_LOCAL_HANDOFFS = 64;
+
+    /**
+     * 本地传递后多久检查一次有没有线程接手
+     */
+    private static final long HANDOFF_CHECK_MILLIS = 100;
+
+    /**
+     * 本地排队的公平锁
+     */
+    private final ReentrantLock localLock = new ReentrantLock(true);
+    /**
+     * 借session用的池
+     */
+    private final ZkSessionPool pool;
+    /**
+     * 竞争资源的标志
+     */
+    private final String lockName;
+    /**
+     * 本地连续传递的最大次数，超过后即使本地还有线程在等，也要释放分布式锁，避免饿死其他进程
+     */
+    private final int maxLocalHandoffs;
+    /**
+     * 进程当前持有的分布式锁，只在持有localLock时读写
+     */
+    private DistributedLock zkLock;
+    /**
+     * 本轮持有分布式锁后已经在本地传递的次数，只在持有localLock时读写
+     */
+    private int localHandoffs;
+    /**
+     * 解锁时分布式锁传给了本地等待的线程，还没有线程接手，只在持有localLock时读写
+     */
+    private boolean handedOff;
+    /**
+     * 接手检查任务已经在排队，只在持有localLock时写
+     */
+    private boolean handoffCheckScheduled;
+    /**
+     * 去zookeeper排队时的准入策略
+     */
+    private volatile AdmissionPolicy admissionPolicy = AdmissionPolicy.UNLIMITED;
+    /**
+     * 解锁后节点保留的时间，0表示不保留
+     */
+    private volatile long retainMillis;
+    /**
+     * 节点是否处于保留状态(没有本地线程持有，但节点没删)，只在持有localLock时读写
+     */
+    private boolean retained;
+    /**
+     * 保留到期的时间点(nanoTime)，只在持有localLock时读写
+     */
+    private long retainDeadline;
+    /**
+     * 当前有效的到期检查任务，频繁加解锁时只保持一个任务，只在持有localLock时读写
+     */
+    private ExpiryTask expiryTask;
+    /**
+     * 本轮持有的节点的队列监听，每次拿到分布式锁时新建，上一轮的监听(比如被自己删除节点触发)不影响这一轮，
+     * 只在持有localLock时读写
+     */
+    private RevokeWatcher revokeWatcher;
+
+    /**
+     * 接手检查任务
+     */
+    private final Runnable handoffCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkHandoff();
+        }
+    };
+
+    HierarchicalDistributedLock(ZkSessionPool pool, String lockName, int maxLocalHandoffs) {
+        this.pool = pool;
+        this.lockName = lockName;
+        this.maxLocalHandoffs = maxLocalHandoffs;
+    }
+
+    /**
+     * 加锁，本地排到队头后，进程还没有分布式锁时才去zookeeper排队
+     */
+    @Override
+    public void lock() {
+        localLock.lock();
+        acquireZkLockOrUnlockLocal();
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        try {
+            localLock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            //可能正是传给自己的分布式锁，没人接手就释放
+            releaseUnclaimedIfIdle();
+            throw e;
+        }
+        acquireZkLockOrUnlockLocal();
+    }
+
+    @Override
+    public boolean tryLock() {
+        if (!localLock.tryLock()) {
+            return false;
+        }
+        if (reuseZkLock()) {
+            return true;
+        }
+        DistributedLock lock = newZkLock();
+        if (lock.tryLock(0, TimeUnit.MILLISECONDS)) {
+            holdZkLock(lock);
+            return true;
+        }
+        localLock.unlock();
+        return false;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        try {
+            if (!localLock.tryLock(time, unit)) {
+                //可能正是传给自己的分布式锁，没人接手就释放
+                releaseUnclaimedIfIdle();
+                return false;
+            }
+        } catch (InterruptedException e) {
+            releaseUnclaimedIfIdle();
+            throw e;
+        }
+        if (reuseZkLock()) {
+            return true;
+        }
+        long remain = Math.max(0L, deadline - System.nanoTime());
+        DistributedLock lock = newZkLock();
+        if (lock.tryLock(TimeUnit.NANOSECONDS.toMillis(remain), TimeUnit.MILLISECONDS)) {
+            holdZkLock(lock);
+            return true;
+        }
+        localLock.unlock();
+        return false;
+    }
+
+    /**
+     * 解锁，本地还有线程在等时直接把分布式锁传给它，开启保留时保留节点，否则释放分布式锁
+     * 等待的线程可能在接手前超时或被中断，这时由它自己或后台的接手检查按正常解锁处理，不会一直占着节点
+     */
+    @Override
+    public void unlock() {
+        if (!localLock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("current thread does not hold lock " + lockName);
+        }
+        try {
+            //重入的内层解锁不动分布式锁
+            if (localLock.getHoldCount() == 1 && zkLock != null) {
+                if (localLock.hasQueuedThreads() && localHandoffs < maxLocalHandoffs) {
+                    localHandoffs++;
+                    handedOff = true;
+                    scheduleHandoffCheck();
+                    LOGGER.debug(lockName + " 在本地传递给下一个线程，第" + localHandoffs + "次");
+                } else if (!retain()) {
+                    releaseZkLock();
+                }
+            }
+        } finally {
+            localLock.unlock();
+        }
+    }
+
+    //没用到
+    @Override
+    public Condition newCondition() {
+        return null;
+    }
+
+    /**
+     * 设置解锁后节点的保留时间
+     * 复用保留的节点前检查session：收到过期事件时在EventThread上同步标记失效，
+     * 复用时session已关闭或连接断开都不复用，先释放再重新排队
+     *
+     * @param retainMillis 0表示不保留
+     */
+    public void setRetainMillis(long retainMillis) {
+        if (retainMillis < 0) {
+            throw new IllegalArgumentException("retainMillis can not be negative: " + retainMillis);
+        }
+        this.retainMillis = retainMillis;
+    }
+
+    public long getRetainMillis() {
+        return retainMillis;
+    }
+
+    /**
+     * 设置准入策略，只限制本地队头线程去zookeeper排队时的位置，本地排队的线程不受限制
+     * 超过阈值时lock()抛LockRejectedException，tryLock(time, unit)返回false
+     *
+     * @param admissionPolicy
+     */
+    public void setAdmissionPolicy(AdmissionPolicy admissionPolicy) {
+        this.admissionPolicy = admissionPolicy == null ? AdmissionPolicy.UNLIMITED : admissionPolicy;
+    }
+
+    public AdmissionPolicy getAdmissionPolicy() {
+        return admissionPolicy;
+    }
+
+    /**
+     * 进程已经持有(或保留着)分布式锁时直接复用
+     *
+     * @return 是否复用
+     */
+    private boolean reuseZkLock() {
+        if (zkLock == null) {
+            return false;
+        }
+        handedOff = false;
+        if (revokeWatcher.expired || !zkLock.isConnected()) {
+            //session过期后节点已经不在了；连接断开时服务端也可能已经让session过期，都不能复用
+            LOGGER.warn(lockName + " 保留或传递的节点 " + zkLock.getCurrNode() + " 的session已失效或连接断开，重新加锁");
+            try {
+                releaseZkLock();
+            } catch (LockException e) {
+                LOGGER.debug(lockName + " release stale node error: ", e);
+            }
+            return false;
+        }
+        if (retained) {
+            retained = false;
+            LOGGER.debug(lockName + " 复用保留的节点 " + zkLock.getCurrNode());
+        }
+        return true;
+    }
+
+    /**
+     * 最后一个本地线程解锁时尝试保留节点
+     *
+     * @return 是否保留
+     */
+    private boolean retain() {
+        final long retain = retainMillis;
+        final RevokeWatcher watcher = revokeWatcher;
+        if (retain <= 0 || watcher.expired) {
+            return false;
+        }
+        if ((watcher.revoked || !watcher.queueWatched) && !watchQueueAlone(watcher)) {
+            //队列里除了自己还有别人，说明有竞争，不保留
+            return false;
+        }
+        retainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retain);
+        //已有的任务会在到期前触发就复用它，否则(比如保留时间改短了，或者任务因为本地在用被放弃了)重新安排
+        if (expiryTask == null || expiryTask.fireAt - retainDeadline > 0 || expiryTask.fireAt - System.nanoTime() < 0) {
+            try {
+                scheduleExpiry(retain);
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+        retained = true;
+        LOGGER.debug(lockName + " 保留节点 " + zkLock.getCurrNode() + " " + retain + "ms");
+        return true;
+    }
+
+    /**
+     * 重新取队列并监听，调用时持有localLock
+     * 撤销也可能是本进程删除上一轮节点触发的(事件晚于这一轮注册监听才送到)，所以撤销后也重新看一次队列，
+     * 队列里只有自己时撤销作废
+     *
+     * @param watcher 本轮的监听
+     * @return 队列里是否只有自己
+     */
+    private boolean watchQueueAlone(RevokeWatcher watcher) {
+        //先置位再取队列，取队列之后立即触发的监听能把它清掉
+        watcher.revoked = false;
+        watcher.queueWatched = true;
+        try {
+            if (zkLock.watchQueue(watcher).size() <= 1) {
+                return true;
+            }
+        } catch (KeeperException e) {
+            LOGGER.debug(lockName + " watch queue error: ", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        watcher.queueWatched = false;
+        watcher.revoked = true;
+        return false;
+    }
+
+    /**
+     * 安排一次接手检查，已经有任务在排队时不重复安排，调用时持有localLock
+     */
+    private void scheduleHandoffCheck() {
+        if (handoffCheckScheduled) {
+            return;
+        }
+        try {
+            pool.scheduler().schedule(handoffCheck, HANDOFF_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            handoffCheckScheduled = true;
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug(lockName + " 接手检查任务被拒绝，池已关闭");
+        }
+    }
+
+    /**
+     * 后台的接手检查，兜住等待线程放弃时没拿到localLock的情况(比如传递的线程还没退出unlock())
+     */
+    private void checkHandoff() {
+        if (!localLock.tryLock()) {
+            //本地有线程持有，过一会再看
+            try {
+                pool.scheduler().schedule(handoffCheck, HANDOFF_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug(lockName + " 接手检查任务被拒绝，池已关闭");
+            }
+            return;
+        }
+        try {
+            handoffCheckScheduled = false;
+            releaseUnclaimed();
+            if (handedOff) {
+                //还有线程在本地排队，等它接手
+                scheduleHandoffCheck();
+            }
+        } finally {
+            localLock.unlock();
+        }
+    }
+
+    /**
+     * 等待的线程超时或被中断后，本地没人持有时检查传给它的分布式锁
+     */
+    private void releaseUnclaimedIfIdle() {
+        if (!localLock.tryLock()) {
+            //有线程持有，要么是它接手了，要么由它或接手检查处理
+            return;
+        }
+        try {
+            releaseUnclaimed();
+        } finally {
+            localLock.unlock();
+        }
+    }
+
+    /**
+     * 传给本地线程的分布式锁没人接手，本地也没有其他线程在排队时，按最后一个线程解锁处理：保留或者释放
+     * 调用时持有localLock
+     */
+    private void releaseUnclaimed() {
+        if (!handedOff || localLock.hasQueuedThreads()) {
+            return;
+        }
+        handedOff = false;
+        LOGGER.debug(lockName + " 传递的分布式锁没有本地线程接手");
+        try {
+            if (!retain()) {
+                releaseZkLock();
+            }
+        } catch (LockException e) {
+            LOGGER.warn(lockName + " release unclaimed node error: ", e);
+        }
+    }
+
+    private void scheduleExpiry(long delayMillis) {
+        ExpiryTask task = new ExpiryTask(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        pool.scheduler().schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        expiryTask = task;
+    }
+
+    /**
+     * 到期检查，保留期间又被复用过时，按最后一次解锁的时间重新计时
+     *
+     * @param task 触发的任务，不是当前有效任务时忽略
+     */
+    private void expireRetained(ExpiryTask task) {
+        if (!localLock.tryLock()) {
+            //本地正在用，解锁保留时会重新安排任务
+            return;
+        }
+        try {
+            if (task != expiryTask) {
+                return;
+            }
+            expiryTask = null;
+            if (!retained) {
+                return;
+            }
+            long remain = retainDeadline - System.nanoTime();
+            if (remain <= 0) {
+                LOGGER.debug(lockName + " 释放保留的节点 " + zkLock.getCurrNode() + "，保留到期");
+                releaseZkLock();
+            } else {
+                scheduleExpiry(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(remain)));
+            }
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug(lockName + " 保留到期任务被拒绝，池已关闭");
+        } catch (LockException e) {
+            LOGGER.warn(lockName + " release retained node error: ", e);
+        } finally {
+            localLock.unlock();
+        }
+    }
+
+    /**
+     * 有其他进程排队时撤销保留，本地有线程在用时不释放，由它解锁时处理
+     *
+     * @param watcher 触发的监听，不是本轮的监听时忽略
+     */
+    private void revokeRetained(RevokeWatcher watcher) {
+        if (!localLock.tryLock()) {
+            return;
+        }
+        try {
+            if (watcher == revokeWatcher && retained && (watcher.expired || !watchQueueAlone(watcher))) {
+                LOGGER.debug(lockName + " 释放保留的节点 " + zkLock.getCurrNode() + "，有其他进程在排队或session过期");
+                releaseZkLock();
+            }
+        } catch (LockException e) {
+            LOGGER.warn(lockName + " release retained node error: ", e);
+        } finally {
+            localLock.unlock();
+        }
+    }
+
+    /**
+     * 进程还没有分布式锁时去zookeeper排队，失败则放开本地锁
+     */
+    private void acquireZkLockOrUnlockLocal() {
+        if (reuseZkLock()) {
+            return;
+        }
+        try {
+            DistributedLock lock = newZkLock();
+            lock.lock();
+            holdZkLock(lock);
+        } catch (RuntimeException e) {
+            localLock.unlock();
+            throw e;
+        }
+    }
+
+    private DistributedLock newZkLock() {
+        DistributedLock lock = new DistributedLock(pool, lockName);
+        lock.setAdmissionPolicy(admissionPolicy);
+        return lock;
+    }
+
+    private void holdZkLock(DistributedLock lock) {
+        zkLock = lock;
+        localHandoffs = 0;
+        revokeWatcher = new RevokeWatcher();
+    }
+
+    private void releaseZkLock() {
+        DistributedLock lock = zkLock;
+        zkLock = null;
+        //上一轮的监听不再需要，之后被自己删除节点触发也不会影响下一轮
+        lock.unwatchQueue(revokeWatcher);
+        revokeWatcher = null;
+        retained = false;
+        handedOff = false;
+        expiryTask = null;
+        //加锁的线程不一定是现在解锁的线程，不走unlock()的持有线程检查
+        lock.release();
+    }
+
+    /**
+     * 一轮持有的队列监听，触发时撤销保留
+     * 每轮新建，上一轮的监听在释放节点时取消，触发后由watchQueueAlone()确认队列里确实有别人
+     */
+    private class RevokeWatcher implements Watcher {
+
+        /**
+         * 队列上有其他节点，本轮持有的节点不能再保留
+         */
+        private volatile boolean revoked;
+        /**
+         * 监听还在，并且上次看到的队列里只有自己，解锁保留时不用再取一次队列
+         */
+        private volatile boolean queueWatched;
+        /**
+         * session已过期，节点已经不在了
+         */
+        private volatile boolean expired;
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() == Event.EventType.None) {
+                if (event.getState() != Event.KeeperState.Expired) {
+                    return;
+                }
+                //先同步标记，不等后台线程，之后的复用检查马上就能看到
+                expired = true;
+            }
+            queueWatched = false;
+            revoked = true;
+            //在zookeeper的EventThread上，不能阻塞，交给后台线程释放
+            final RevokeWatcher watcher = this;
+            try {
+                pool.scheduler().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        revokeRetained(watcher);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug(lockName + " 撤销保留任务被拒绝，池已关闭");
+            }
+        }
+    }
+
+    /**
+     * 保留到期检查任务
+     */
+    private class ExpiryTask implements Runnable {
+
+        /**
+         * 计划触发的时间点(nanoTime)
+         */
+        private final long fireAt;
+
+        ExpiryTask(long fireAt) {
+            this.fireAt = fireAt;
+        }
+
+        @Override
+        public void run() {
+            expireRetained(this);
+        }
+    }
+}
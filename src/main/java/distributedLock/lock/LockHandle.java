@@ -0,0 +1,32 @@
+package distributedLock.lock;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 已经拿到的锁，用完后调用unlock()释放，也可以用在try-with-resources里
+ */
+public interface LockHandle extends AutoCloseable {
+
+    /**
+     * @return 竞争资源的标志
+     */
+    String getLockName();
+
+    /**
+     * 同步释放锁
+     */
+    void unlock();
+
+    /**
+     * 异步释放锁，不阻塞调用线程
+     * 返回的future在zookeeper的EventThread或池的调度线程上完成，后续操作里有阻塞时用xxxAsync方法换线程
+     *
+     * @return 节点删除完成时结束
+     */
+    CompletableFuture<Void> unlockAsync();
+
+    @Override
+    default void close() {
+        unlock();
+    }
+}
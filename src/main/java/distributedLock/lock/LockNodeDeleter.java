@@ -0,0 +1,117 @@
+package distributedLock.lock;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 删除锁节点，断线时重试，直到确认节点已经不在
+ * 删除请求遇到ConnectionLoss时节点可能还在，池中的session又是长连接，节点会一直挂在队列里，
+ * 后面不限时等待的锁要等清理任务扫描两次才能继续，不开清理任务时永远等下去。
+ * NoNode说明节点已经删了；session过期、已关闭，或者连续sessionTimeout连不上(服务端已经让session过期)时，
+ * 临时节点已经被zookeeper删除，这几种都算删除成功
+ */
+class LockNodeDeleter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LockNodeDeleter.class);
+
+    /**
+     * ConnectionLoss后的重试间隔
+     */
+    static final long RETRY_MILLIS = 200;
+
+    private LockNodeDeleter() {
+    }
+
+    /**
+     * 同步删除，返回时节点已经确认不在
+     *
+     * @param zk
+     * @param node
+     * @throws KeeperException      ConnectionLoss以外的错误
+     * @throws InterruptedException 重试时被中断，节点可能还在
+     */
+    static void delete(ZooKeeper zk, String node) throws KeeperException, InterruptedException {
+        long connectedAt = System.currentTimeMillis();
+        while (true) {
+            try {
+                zk.delete(node, -1);
+                return;
+            } catch (KeeperException.NoNodeException e) {
+                //节点已经不在了
+                return;
+            } catch (KeeperException.SessionExpiredException e) {
+                //session结束时临时节点已经被删除
+                return;
+            } catch (KeeperException.ConnectionLossException e) {
+                if (zk.getState().isConnected()) {
+                    connectedAt = System.currentTimeMillis();
+                }
+                if (sessionGone(zk, node, connectedAt)) {
+                    return;
+                }
+                Thread.sleep(RETRY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * 异步删除，ConnectionLoss时在池的调度线程上重试
+     *
+     * @param zk
+     * @param node
+     * @param pool     提供重试用的调度线程
+     * @param callback 节点确认不在时rc为OK，否则是出错的rc
+     */
+    static void deleteAsync(ZooKeeper zk, String node, ZkSessionPool pool, AsyncCallback.VoidCallback callback) {
+        deleteAsync(zk, node, pool, callback, System.currentTimeMillis());
+    }
+
+    private static void deleteAsync(final ZooKeeper zk, final String node, final ZkSessionPool pool,
+                                    final AsyncCallback.VoidCallback callback, final long connectedAt) {
+        zk.delete(node, -1, (rc, path, ctx) -> {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code == KeeperException.Code.CONNECTIONLOSS) {
+                final long since = zk.getState().isConnected() ? System.currentTimeMillis() : connectedAt;
+                if (!sessionGone(zk, node, since)) {
+                    try {
+                        pool.scheduler().schedule(() -> deleteAsync(zk, node, pool, callback, since),
+                                RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                        return;
+                    } catch (RejectedExecutionException e) {
+                        //池已关闭，session也随之关闭
+                    }
+                }
+                code = KeeperException.Code.OK;
+            } else if (code == KeeperException.Code.NONODE || code == KeeperException.Code.SESSIONEXPIRED) {
+                code = KeeperException.Code.OK;
+            }
+            callback.processResult(code.intValue(), path, ctx);
+        }, null);
+    }
+
+    /**
+     * ConnectionLoss后判断session是否已经结束
+     *
+     * @param zk
+     * @param node
+     * @param connectedAt 最后一次看到连接正常的时间
+     * @return session已经结束，临时节点已经被删除
+     */
+    private static boolean sessionGone(ZooKeeper zk, String node, long connectedAt) {
+        if (!zk.getState().isAlive()) {
+            return true;
+        }
+        if (System.currentTimeMillis() - connectedAt > zk.getSessionTimeout()) {
+            LOGGER.warn("delete " + node + ": disconnected longer than session timeout, session has expired on server");
+            return true;
+        }
+        LOGGER.debug("delete " + node + " connection loss, retry in " + RETRY_MILLIS + "ms");
+        return false;
+    }
+}
@@ -0,0 +1,126 @@
+package distributedLock.lock;
+
+import distributedLock.exception.LockException;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 无主锁节点的清理任务，由ZkSessionPool在后台线程上定时执行
+ * session结束时zookeeper会自己删除它的临时节点，但池中的session是长连接，
+ * 锁对象没解锁就被丢弃、删除节点时断线等情况留下的节点会一直挂在队列里，后面的锁永远排不到。
+ * 这里只处理属于本池session、又没有登记(或登记的锁对象已被回收)的节点，
+ * 连续两次扫描都是这样才删除，避免删掉刚创建还没来得及登记的节点；
+ * 连续两次扫描都为空的lockName目录也一并删除
+ */
+class LockNodeReaper implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LockNodeReaper.class);
+
+    private final ZkSessionPool pool;
+    /**
+     * 上次扫描发现的无主节点
+     */
+    private Set<String> suspectNodes = new HashSet<String>();
+    /**
+     * 上次扫描发现的空目录
+     */
+    private Set<String> emptyDirs = new HashSet<String>();
+
+    LockNodeReaper(ZkSessionPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void run() {
+        //定时任务抛出异常后就不会再执行，这里不能抛
+        try {
+            reap();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (KeeperException e) {
+            LOGGER.warn("reap lock nodes error: ", e);
+        } catch (LockException e) {
+            LOGGER.debug("reap lock nodes skipped: " + e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.error("reap lock nodes error: ", e);
+        }
+    }
+
+    private void reap() throws KeeperException, InterruptedException {
+        ZooKeeper zk = pool.borrow().zk;
+        Set<Long> owners = pool.sessionIds();
+        Set<String> suspects = new HashSet<String>();
+        Set<String> empties = new HashSet<String>();
+        int reaped = 0;
+        for (String dir : new ArrayList<String>(pool.knownDirs())) {
+            if (dir.equals(DistributedLock.ROOT)) {
+                continue;
+            }
+            List<String> children;
+            try {
+                children = zk.getChildren(dir, false);
+            } catch (KeeperException.NoNodeException e) {
+                pool.knownDirs().remove(dir);
+                continue;
+            }
+            if (children.isEmpty()) {
+                if (emptyDirs.contains(dir)) {
+                    deleteEmptyDir(zk, dir);
+                } else {
+                    empties.add(dir);
+                }
+                continue;
+            }
+            for (String child : children) {
+                String path = dir + "/" + child;
+                if (pool.isLiveNode(path)) {
+                    continue;
+                }
+                Stat stat = zk.exists(path, false);
+                if (stat == null || !owners.contains(stat.getEphemeralOwner())) {
+                    //其他进程的节点由zookeeper在它们的session结束时删除
+                    continue;
+                }
+                if (suspectNodes.contains(path)) {
+                    try {
+                        zk.delete(path, -1);
+                        reaped++;
+                        LOGGER.warn("reap orphaned lock node " + path);
+                    } catch (KeeperException.NoNodeException e) {
+                        //已经不在了
+                    }
+                    pool.unregisterNode(path);
+                } else {
+                    suspects.add(path);
+                }
+            }
+        }
+        suspectNodes = suspects;
+        emptyDirs = empties;
+        if (reaped > 0 || !suspects.isEmpty()) {
+            LOGGER.debug("reaped " + reaped + " lock nodes, " + suspects.size() + " suspects left");
+        }
+    }
+
+    private void deleteEmptyDir(ZooKeeper zk, String dir) throws KeeperException, InterruptedException {
+        //先从缓存去掉，之后加锁的会重建目录
+        pool.knownDirs().remove(dir);
+        try {
+            zk.delete(dir, -1);
+            LOGGER.debug("delete empty lock dir " + dir);
+        } catch (KeeperException.NotEmptyException e) {
+            //刚有锁在里面创建了节点
+            pool.knownDirs().add(dir);
+        } catch (KeeperException.NoNodeException e) {
+            //已经被删了
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package distributedLock.lock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个lockName在本进程观察到的持有时间，指数加权移动平均
+ * 只统计本进程的持有时间，用来估计排队等待时间
+ */
+class LockStats {
+
+    /**
+     * 新样本的权重
+     */
+    private static final double ALPHA = 0.2;
+
+    /**
+     * 平均持有时间(纳秒)，还没有样本时为-1
+     */
+    private final AtomicLong avgHoldNanos = new AtomicLong(-1L);
+
+    void recordHold(long holdNanos) {
+        while (true) {
+            long old = avgHoldNanos.get();
+            long avg = old < 0 ? holdNanos : old + (long) (ALPHA * (holdNanos - old));
+            if (avgHoldNanos.compareAndSet(old, avg)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return 平均持有时间，还没有样本时为-1
+     */
+    long avgHoldMillis() {
+        long avg = avgHoldNanos.get();
+        return avg < 0 ? -1L : TimeUnit.NANOSECONDS.toMillis(avg);
+    }
+
+    /**
+     * 前面每个节点都要持有一次锁
+     *
+     * @param position 排队位置，0是队头
+     * @return 预计等待时间，还没有样本时为-1
+     */
+    long estimateWaitMillis(int position) {
+        long avg = avgHoldNanos.get();
+        if (avg < 0) {
+            return -1L;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(avg * position);
+    }
+}
@@ -0,0 +1,230 @@
+package distributedLock.lock;
+
+import distributedLock.exception.LockException;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 批量分布式锁
+ * 所有lockName的临时有序节点在一个multi()事务里按排序后的顺序一次创建，然后并行等待各自的前一个节点。
+ * zookeeper的事务是串行执行的，两个批量加锁的节点在它们共同的每个队列里先后顺序都一致，
+ * 不会出现互相等待的死锁；N把锁的创建也从N次请求变成一次。
+ * 由DistributedLockFactory.lockAll()创建
+ */
+class MultiDistributedLock implements LockHandle {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MultiDistributedLock.class);
+
+    /**
+     * zk连接对象
+     */
+    private final ZooKeeper zk;
+    /**
+     * 借session的池，所有节点都以批量锁的名义登记
+     */
+    private final ZkSessionPool pool;
+    /**
+     * 排序去重后的lockName
+     */
+    private final List<String> lockNames;
+    /**
+     * 每把锁的节点，下标和lockNames对应
+     */
+    private final List<String> nodes = new ArrayList<String>();
+
+    private MultiDistributedLock(ZkSessionPool pool, ZooKeeper zk, List<String> lockNames) {
+        this.pool = pool;
+        this.zk = zk;
+        this.lockNames = lockNames;
+    }
+
+    /**
+     * 批量加锁，所有锁都拿到才返回
+     *
+     * @param pool      借session的池
+     * @param timeout   等待所有锁的最长时间
+     * @param unit
+     * @param names     竞争资源标志，重复的只加一次
+     * @return 拿到的所有锁，unlock()一次全部释放
+     */
+    static MultiDistributedLock lockAll(ZkSessionPool pool, long timeout, TimeUnit unit, String... names) {
+        if (names == null || names.length == 0) {
+            throw new LockException("lockNames can not be empty");
+        }
+        //按固定顺序排序，保证所有调用方的事务里节点顺序一致
+        List<String> lockNames = new ArrayList<String>(new TreeSet<String>(Arrays.asList(names)));
+        ZkSessionPool.Session session = pool.borrow();
+        Set<String> knownDirs = pool.knownDirs();
+        MultiDistributedLock lock = new MultiDistributedLock(pool, session.zk, lockNames);
+        List<CompletableFuture<LockHandle>> waits = new ArrayList<CompletableFuture<LockHandle>>();
+        try {
+            List<Op> ops = new ArrayList<Op>();
+            for (String lockName : lockNames) {
+                if (lockName.isEmpty() || lockName.contains("/")) {
+                    throw new LockException("锁名有误, lockName can not be empty or contains '/'");
+                }
+                String lockDir = DistributedLock.ROOT + "/" + lockName;
+                DistributedLock.ensureLockDir(session.zk, knownDirs, DistributedLock.ROOT, lockDir);
+                ops.add(Op.create(lockDir + "/" + DistributedLock.NODE_PREFIX, new byte[0],
+                        ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL));
+            }
+            //一次事务创建所有节点
+            List<OpResult> results;
+            try {
+                results = session.zk.multi(ops);
+            } catch (KeeperException.NoNodeException e) {
+                //缓存里有目录已经被清理了，重建后再试一次，事务失败时一个节点都没有创建
+                for (String lockName : lockNames) {
+                    String lockDir = DistributedLock.ROOT + "/" + lockName;
+                    knownDirs.remove(lockDir);
+                    DistributedLock.ensureLockDir(session.zk, knownDirs, DistributedLock.ROOT, lockDir);
+                }
+                results = session.zk.multi(ops);
+            }
+            for (OpResult result : results) {
+                String node = ((OpResult.CreateResult) result).getPath();
+                lock.nodes.add(node);
+                pool.registerNode(node, lock);
+            }
+            LOGGER.debug("批量创建节点: " + lock.nodes);
+            //并行等待各自的前一个节点
+            for (int i = 0; i < lockNames.size(); i++) {
+                AsyncDistributedLock one = new AsyncDistributedLock(pool, session, lockNames.get(i), AdmissionPolicy.UNLIMITED);
+                waits.add(one.startWithNode(lock.nodes.get(i)));
+            }
+            CompletableFuture.allOf(waits.toArray(new CompletableFuture<?>[waits.size()])).get(timeout, unit);
+            LOGGER.debug("批量获得锁: " + lockNames);
+            return lock;
+        } catch (KeeperException e) {
+            lock.abort(waits);
+            throw new LockException(e);
+        } catch (InterruptedException e) {
+            lock.abort(waits);
+            throw new LockException(e);
+        } catch (ExecutionException e) {
+            lock.abort(waits);
+            throw new LockException(e.getCause());
+        } catch (TimeoutException e) {
+            lock.abort(waits);
+            throw new LockException("lockAll " + lockNames + " timeout after " + unit.toMillis(timeout) + "ms");
+        } catch (RuntimeException e) {
+            lock.abort(waits);
+            throw e;
+        }
+    }
+
+    @Override
+    public String getLockName() {
+        StringBuilder sb = new StringBuilder();
+        for (String lockName : lockNames) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(lockName);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 一次事务删除所有节点
+     */
+    @Override
+    public void unlock() {
+        if (nodes.isEmpty()) {
+            return;
+        }
+        List<Op> ops = new ArrayList<Op>();
+        for (String node : nodes) {
+            ops.add(Op.delete(node, -1));
+        }
+        try {
+            LOGGER.debug("批量unlock " + nodes);
+            zk.multi(ops);
+        } catch (KeeperException e) {
+            //事务里有节点已经不在了或者断线，整个事务失败，逐个删除，断线时重试到确认删除
+            deleteEach();
+        } catch (InterruptedException e) {
+            unregisterNodes();
+            nodes.clear();
+            Thread.currentThread().interrupt();
+            throw new LockException(e);
+        }
+        unregisterNodes();
+        nodes.clear();
+    }
+
+    /**
+     * zookeeper 3.4没有异步的multi，逐个异步删除
+     *
+     * @return
+     */
+    @Override
+    public CompletableFuture<Void> unlockAsync() {
+        List<CompletableFuture<Void>> deletes = new ArrayList<CompletableFuture<Void>>();
+        for (String node : nodes) {
+            final CompletableFuture<Void> deleted = new CompletableFuture<Void>();
+            LockNodeDeleter.deleteAsync(zk, node, pool, (rc, path, ctx) -> {
+                pool.unregisterNode(path);
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                if (code == KeeperException.Code.OK) {
+                    deleted.complete(null);
+                } else {
+                    deleted.completeExceptionally(new LockException(KeeperException.create(code, path)));
+                }
+            });
+            deletes.add(deleted);
+        }
+        nodes.clear();
+        return CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[deletes.size()]));
+    }
+
+    /**
+     * 加锁失败时取消所有等待，已经创建的节点都删掉
+     *
+     * @param waits
+     */
+    private void abort(List<CompletableFuture<LockHandle>> waits) {
+        //取消会删除还在等待的节点，已经拿到的锁的节点由deleteEach删除
+        for (CompletableFuture<LockHandle> wait : waits) {
+            wait.cancel(false);
+        }
+        deleteEach();
+        unregisterNodes();
+        nodes.clear();
+    }
+
+    private void unregisterNodes() {
+        for (String node : nodes) {
+            pool.unregisterNode(node);
+        }
+    }
+
+    private void deleteEach() {
+        for (String node : nodes) {
+            try {
+                LockNodeDeleter.delete(zk, node);
+            } catch (KeeperException e) {
+                LOGGER.warn("delete " + node + " error, leave it to the reaper: ", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
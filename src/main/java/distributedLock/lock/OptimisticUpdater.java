@@ -0,0 +1,200 @@
+package distributedLock.lock;
+
+import distributedLock.exception.LockException;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * 基于版本号的乐观更新
+ * 临界区只是对一个节点数据的读-改-写时，不需要完整的加锁流程(建有序节点、取队列、监听、删除)：
+ * 读出数据和Stat.version，计算新值，用setData(path, data, version)写回，
+ * 期间有人改过时版本号不匹配(BadVersion)，随机退避后重新读。
+ * 没有冲突时只要两次请求，不创建任何锁节点。
+ * 由DistributedLockFactory.newOptimisticUpdater()创建，线程安全
+ */
+public class OptimisticUpdater {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OptimisticUpdater.class);
+
+    /**
+     * 借session用的池
+     */
+    private final ZkSessionPool pool;
+    /**
+     * 最多重试次数
+     */
+    private volatile int maxRetries = 10;
+    /**
+     * 第一次退避的上限
+     */
+    private volatile long baseBackoffMillis = 5L;
+    /**
+     * 退避的最大上限
+     */
+    private volatile long maxBackoffMillis = 500L;
+    /**
+     * 成功完成的update()次数，包括不修改的
+     */
+    private final AtomicLong updates = new AtomicLong();
+    /**
+     * 版本冲突次数
+     */
+    private final AtomicLong conflicts = new AtomicLong();
+    /**
+     * 重试次数
+     */
+    private final AtomicLong retries = new AtomicLong();
+    /**
+     * 重试用完仍然冲突的次数
+     */
+    private final AtomicLong exhausted = new AtomicLong();
+
+    OptimisticUpdater(ZkSessionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * 读-改-写一个节点，冲突时退避重试
+     *
+     * @param path     节点路径，不存在时以null调用function，再创建持久节点(父节点要已经存在)
+     * @param function 由旧数据计算新数据，冲突时会被调用多次，不要有副作用；返回null表示不修改
+     * @return 写入的新数据，不修改时返回读到的数据
+     * @throws LockException 重试用完仍然冲突，或zookeeper出错
+     */
+    public byte[] update(String path, UnaryOperator<byte[]> function) {
+        ZooKeeper zk = pool.borrow().zk;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                byte[] result = tryUpdate(zk, path, function);
+                updates.incrementAndGet();
+                return result;
+            } catch (KeeperException.BadVersionException e) {
+                //读和写之间被别人改过
+                conflicts.incrementAndGet();
+            } catch (KeeperException.NodeExistsException e) {
+                //读的时候不存在，创建前被别人创建了
+                conflicts.incrementAndGet();
+            } catch (KeeperException.NoNodeException e) {
+                //读到之后写之前被别人删了
+                conflicts.incrementAndGet();
+            } catch (KeeperException e) {
+                throw new LockException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LockException(e);
+            }
+            if (attempt >= maxRetries) {
+                exhausted.incrementAndGet();
+                throw new LockException("optimistic update of " + path + " still conflicts after " + maxRetries + " retries");
+            }
+            retries.incrementAndGet();
+            backoff(attempt);
+        }
+    }
+
+    private byte[] tryUpdate(ZooKeeper zk, String path, UnaryOperator<byte[]> function)
+            throws KeeperException, InterruptedException {
+        Stat stat = new Stat();
+        byte[] data;
+        try {
+            data = zk.getData(path, false, stat);
+        } catch (KeeperException.NoNodeException e) {
+            byte[] created = function.apply(null);
+            if (created == null) {
+                return null;
+            }
+            create(zk, path, created);
+            return created;
+        }
+        byte[] updated = function.apply(data);
+        if (updated == null) {
+            return data;
+        }
+        //版本号不是读到的版本时zookeeper拒绝写入
+        zk.setData(path, updated, stat.getVersion());
+        return updated;
+    }
+
+    /**
+     * 创建节点，父节点不存在时重试也没用，直接失败；只有getData到setData之间节点被删才算冲突
+     *
+     * @throws LockException 父节点不存在
+     */
+    private static void create(ZooKeeper zk, String path, byte[] data) throws KeeperException, InterruptedException {
+        try {
+            zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NoNodeException e) {
+            int index = path.lastIndexOf('/');
+            String parent = index > 0 ? path.substring(0, index) : "/";
+            throw new LockException("can not create " + path + ", parent " + parent + " does not exist");
+        }
+    }
+
+    /**
+     * 指数增长上限内的随机退避，避免冲突的客户端同时重试又撞在一起
+     *
+     * @param attempt 第几次重试，从0开始
+     */
+    private void backoff(int attempt) {
+        long cap = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt, 20));
+        long sleep = ThreadLocalRandom.current().nextLong(cap + 1);
+        if (sleep <= 0) {
+            return;
+        }
+        LOGGER.debug("optimistic update conflict, retry " + (attempt + 1) + " after " + sleep + "ms");
+        try {
+            TimeUnit.MILLISECONDS.sleep(sleep);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LockException(e);
+        }
+    }
+
+    /**
+     * @param maxRetries 冲突后最多重试次数
+     */
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries can not be negative: " + maxRetries);
+        }
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param baseBackoffMillis 第一次退避的上限，之后每次翻倍
+     * @param maxBackoffMillis  退避的最大上限
+     */
+    public void setBackoff(long baseBackoffMillis, long maxBackoffMillis) {
+        if (baseBackoffMillis < 0 || maxBackoffMillis < baseBackoffMillis) {
+            throw new IllegalArgumentException("bad backoff: " + baseBackoffMillis + ", " + maxBackoffMillis);
+        }
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getExhausted() {
+        return exhausted.get();
+    }
+}
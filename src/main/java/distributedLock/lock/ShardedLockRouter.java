@@ -0,0 +1,183 @@
+package distributedLock.lock;
+
+import distributedLock.exception.LockException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 分片锁路由
+ * 一个zookeeper集群的所有写操作都要经过leader，锁的吞吐量受单个集群的写能力限制。
+ * 这里用一致性哈希环把lockName分到多个集群上，每个lockName固定落在一个集群，
+ * 不同集群上的锁互不影响，吞吐量随集群数量增长。
+ * 每个集群在环上放virtualNodes个虚拟节点，位置只由服务地址决定，和添加顺序无关，
+ * 所有进程配置同样的集群列表就会得到同样的路由。
+ * 新增集群时只有大约1/N的lockName改变路由
+ */
+public class ShardedLockRouter {
+
+    /**
+     * 默认每个集群的虚拟节点数
+     */
+    private static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new LockException(e);
+            }
+        }
+    };
+
+    /**
+     * 创建锁用的工厂，每个集群一个session池
+     */
+    private final DistributedLockFactory factory;
+    /**
+     * 每个集群的虚拟节点数
+     */
+    private final int virtualNodes;
+    /**
+     * 哈希环，新增集群时整体替换，路由时不用加锁
+     */
+    private volatile TreeMap<Long, String> ring = new TreeMap<Long, String>();
+    /**
+     * 已加入的集群
+     */
+    private volatile List<String> ensembles = Collections.emptyList();
+
+    /**
+     * @param factory 创建锁用的工厂
+     * @param configs 各个集群的zookeeper服务地址
+     */
+    public ShardedLockRouter(DistributedLockFactory factory, String... configs) {
+        this(factory, DEFAULT_VIRTUAL_NODES, configs);
+    }
+
+    /**
+     * @param factory      创建锁用的工厂
+     * @param virtualNodes 每个集群在环上的虚拟节点数，越多分布越均匀
+     * @param configs      各个集群的zookeeper服务地址
+     */
+    public ShardedLockRouter(DistributedLockFactory factory, int virtualNodes, String... configs) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be positive: " + virtualNodes);
+        }
+        this.factory = factory;
+        this.virtualNodes = virtualNodes;
+        for (String config : configs) {
+            addEnsemble(config);
+        }
+    }
+
+    /**
+     * 加入一个集群
+     * 路由改到新集群的lockName，在旧集群上已经持有或正在排队的锁不会被新集群看到，
+     * 所以加集群前要让这些lockName上没有进行中的锁，并且所有进程一起切换
+     *
+     * @param config zookeeper服务地址
+     */
+    public synchronized void addEnsemble(String config) {
+        if (ensembles.contains(config)) {
+            return;
+        }
+        TreeMap<Long, String> newRing = new TreeMap<Long, String>(ring);
+        for (int i = 0; i < virtualNodes; i++) {
+            long position = hash(config + "#" + i);
+            String exist = newRing.get(position);
+            //极少见的哈希冲突，按服务地址取小的，保证和加入顺序无关
+            if (exist == null || config.compareTo(exist) < 0) {
+                newRing.put(position, config);
+            }
+        }
+        List<String> newEnsembles = new ArrayList<String>(ensembles);
+        newEnsembles.add(config);
+        ring = newRing;
+        ensembles = Collections.unmodifiableList(newEnsembles);
+    }
+
+    /**
+     * @return 已加入的集群
+     */
+    public List<String> getEnsembles() {
+        return ensembles;
+    }
+
+    /**
+     * 取lockName所在的集群
+     *
+     * @param lockName 竞争资源标志
+     * @return zookeeper服务地址
+     */
+    public String route(String lockName) {
+        TreeMap<Long, String> current = ring;
+        if (current.isEmpty()) {
+            throw new LockException("no zookeeper ensemble to route lock " + lockName);
+        }
+        Map.Entry<Long, String> entry = current.ceilingEntry(hash(lockName));
+        if (entry == null) {
+            //超过环上最大的位置，回到第一个
+            entry = current.firstEntry();
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * @param lockName 竞争资源标志,lockName中不能包含/
+     * @return lockName所在集群上的分布式锁
+     */
+    public DistributedLock newLock(String lockName) {
+        return factory.newLock(route(lockName), lockName);
+    }
+
+    /**
+     * @param lockName 竞争资源标志,lockName中不能包含/
+     * @return lockName所在集群上的非公平分布式锁
+     */
+    public DistributedLock newUnfairLock(String lockName) {
+        return factory.newUnfairLock(route(lockName), lockName);
+    }
+
+    /**
+     * @param lockName 竞争资源标志,lockName中不能包含/
+     * @return 在lockName所在集群上异步加锁，future在zookeeper的EventThread上完成，见DistributedLockFactory.lockAsync()
+     */
+    public CompletableFuture<LockHandle> lockAsync(String lockName) {
+        return factory.lockAsync(route(lockName), lockName);
+    }
+
+    /**
+     * @param lockName 竞争资源标志,lockName中不能包含/
+     * @return lockName所在集群上进程内共享的分层锁
+     */
+    public HierarchicalDistributedLock getHierarchicalLock(String lockName) {
+        return factory.getHierarchicalLock(route(lockName), lockName);
+    }
+
+    /**
+     * 取MD5的前8个字节作为环上的位置
+     *
+     * @param key
+     * @return
+     */
+    private static long hash(String key) {
+        MessageDigest md5 = MD5.get();
+        md5.reset();
+        byte[] digest = md5.digest(key.getBytes(StandardCharsets.UTF_8));
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (digest[i] & 0xFF);
+        }
+        return h;
+    }
+}
@@ -0,0 +1,203 @@
+package distributedLock.lock;
+
+import distributedLock.exception.LockException;
+
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 分段分布式锁
+ * 按业务key(订单号、账户号)加锁时，一个key一把锁会产生数不清的lockName和节点。
+ * 这里把key哈希到固定数量的段上，每段是一把分层锁(lockName_段号)，
+ * zookeeper上的目录、节点和监听数量只和段数有关，不相关的key大多落在不同的段上，仍然可以并行。
+ * 同时锁多个key或锁所有段时，总是按段号从小到大加锁，不会互相死锁。
+ * <p>
+ * key按String.valueOf(key)的hashCode分段，所有进程的段数必须相同，
+ * key的toString()在各个进程里要一致(String、Long这类都可以)
+ */
+public class StripedDistributedLock {
+
+    /**
+     * 段的lockName和段号之间的分隔符
+     */
+    private static final String STRIPE_SEPARATOR = "_";
+
+    /**
+     * 竞争资源的标志
+     */
+    private final String lockName;
+    /**
+     * 每段一把进程内共享的分层锁
+     */
+    private final HierarchicalDistributedLock[] stripes;
+
+    StripedDistributedLock(DistributedLockFactory factory, String config, String lockName, int stripeCount) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("stripeCount must be positive: " + stripeCount);
+        }
+        this.lockName = lockName;
+        this.stripes = new HierarchicalDistributedLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = factory.getHierarchicalLock(config, lockName + STRIPE_SEPARATOR + i);
+        }
+    }
+
+    /**
+     * @return 段数
+     */
+    public int size() {
+        return stripes.length;
+    }
+
+    /**
+     * @param key 业务key
+     * @return key所在的段号
+     */
+    public int stripeOf(Object key) {
+        int h = String.valueOf(key).hashCode();
+        //高位参与运算，避免只差在高位的key都落在同一段
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    /**
+     * @param key 业务key
+     * @return key所在段的锁
+     */
+    public Lock get(Object key) {
+        return stripes[stripeOf(key)];
+    }
+
+    /**
+     * 按段号顺序锁住所有key所在的段，同一段只加一次
+     *
+     * @param keys 业务key
+     */
+    public void lockKeys(Object... keys) {
+        int[] order = sortedStripes(keys);
+        int locked = 0;
+        try {
+            for (; locked < order.length; locked++) {
+                stripes[order[locked]].lock();
+            }
+        } catch (RuntimeException e) {
+            //中途失败，放开已经拿到的段
+            unlockStripes(order, locked);
+            throw e;
+        }
+    }
+
+    /**
+     * 按段号顺序尝试锁住所有key所在的段，超时或失败时放开已经拿到的段
+     *
+     * @param timeout 等待所有段的最长时间
+     * @param unit
+     * @param keys    业务key
+     * @return 是否全部拿到
+     */
+    public boolean tryLockKeys(long timeout, TimeUnit unit, Object... keys) {
+        return tryLockStripes(sortedStripes(keys), System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /**
+     * 放开lockKeys()锁住的段
+     *
+     * @param keys 和加锁时相同的业务key
+     */
+    public void unlockKeys(Object... keys) {
+        int[] order = sortedStripes(keys);
+        unlockStripes(order, order.length);
+    }
+
+    /**
+     * 按段号顺序锁住所有段
+     */
+    public void lockAllStripes() {
+        int locked = 0;
+        try {
+            for (; locked < stripes.length; locked++) {
+                stripes[locked].lock();
+            }
+        } catch (RuntimeException e) {
+            unlockStripes(allStripes(), locked);
+            throw e;
+        }
+    }
+
+    /**
+     * 按段号顺序尝试锁住所有段
+     *
+     * @param timeout 等待所有段的最长时间
+     * @param unit
+     * @return 是否全部拿到
+     */
+    public boolean tryLockAllStripes(long timeout, TimeUnit unit) {
+        return tryLockStripes(allStripes(), System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    public void unlockAllStripes() {
+        unlockStripes(allStripes(), stripes.length);
+    }
+
+    private boolean tryLockStripes(int[] order, long deadline) {
+        int locked = 0;
+        try {
+            for (; locked < order.length; locked++) {
+                long remain = Math.max(0L, deadline - System.nanoTime());
+                if (!stripes[order[locked]].tryLock(remain, TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (LockException e) {
+            //和tryLock一样，出错返回false
+        }
+        if (locked == order.length) {
+            return true;
+        }
+        unlockStripes(order, locked);
+        return false;
+    }
+
+    /**
+     * 倒序放开前count个段
+     *
+     * @param order
+     * @param count
+     */
+    private void unlockStripes(int[] order, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            stripes[order[i]].unlock();
+        }
+    }
+
+    /**
+     * @param keys
+     * @return 去重后从小到大的段号
+     */
+    private int[] sortedStripes(Object... keys) {
+        if (keys == null || keys.length == 0) {
+            throw new LockException("keys can not be empty, lockName: " + lockName);
+        }
+        TreeSet<Integer> sorted = new TreeSet<Integer>();
+        for (Object key : keys) {
+            sorted.add(stripeOf(key));
+        }
+        int[] order = new int[sorted.size()];
+        int i = 0;
+        for (Integer stripe : sorted) {
+            order[i++] = stripe;
+        }
+        return order;
+    }
+
+    private int[] allStripes() {
+        int[] order = new int[stripes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        return order;
+    }
+}
@@ -0,0 +1,160 @@
+package distributedLock.lock;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * session的默认watcher，按节点路径把事件分发给等待它的waiter
+ * 多把锁共享一个session时，每个节点删除事件只唤醒依赖这个节点的waiter，
+ * zookeeper客户端里每个路径也只保存一个watch，不随waiter数量增长
+ */
+class WatchDispatcher implements Watcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WatchDispatcher.class);
+
+    /**
+     * 节点路径 -> 等待这个节点事件的waiter
+     */
+    private final ConcurrentMap<String, Set<Watcher>> waiters = new ConcurrentHashMap<String, Set<Watcher>>();
+
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getType() == Event.EventType.None) {
+            //断线重连后zookeeper会自动恢复watch，只有session过期需要通知所有waiter
+            if (event.getState() == Event.KeeperState.Expired) {
+                LOGGER.warn("session expired, wake up all " + waiters.size() + " watched paths");
+                List<Set<Watcher>> all = new ArrayList<Set<Watcher>>(waiters.values());
+                waiters.clear();
+                for (Set<Watcher> set : all) {
+                    deliver(set, event);
+                }
+            }
+            return;
+        }
+        Set<Watcher> set = waiters.remove(event.getPath());
+        if (set != null) {
+            deliver(set, event);
+        }
+    }
+
+    /**
+     * 注册waiter并监听节点，节点不存在时不留下监听
+     *
+     * @param zk
+     * @param path   要监听的节点
+     * @param waiter 节点事件只会通知到这个waiter
+     * @return 节点不存在返回null
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    Stat watch(ZooKeeper zk, String path, Watcher waiter) throws KeeperException, InterruptedException {
+        register(path, waiter);
+        Stat stat = new Stat();
+        try {
+            //用getData而不是exists，节点不存在时zookeeper不会留下一个等待节点创建的watch
+            zk.getData(path, true, stat);
+            return stat;
+        } catch (KeeperException.NoNodeException e) {
+            unregister(path, waiter);
+            return null;
+        } catch (KeeperException e) {
+            unregister(path, waiter);
+            throw e;
+        } catch (InterruptedException e) {
+            unregister(path, waiter);
+            throw e;
+        }
+    }
+
+    /**
+     * 注册waiter并监听子节点变化
+     *
+     * @param zk
+     * @param path   要监听的目录
+     * @param waiter 子节点变化只会通知到这个waiter
+     * @return 当前子节点
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    List<String> watchChildren(ZooKeeper zk, String path, Watcher waiter) throws KeeperException, InterruptedException {
+        register(path, waiter);
+        try {
+            return zk.getChildren(path, true);
+        } catch (KeeperException e) {
+            unregister(path, waiter);
+            throw e;
+        } catch (InterruptedException e) {
+            unregister(path, waiter);
+            throw e;
+        }
+    }
+
+    /**
+     * watch()的异步版本
+     *
+     * @param zk
+     * @param path
+     * @param waiter
+     * @param cb     节点不存在时rc为NONODE，此时不留下监听
+     */
+    void watchAsync(ZooKeeper zk, final String path, final Watcher waiter, final AsyncCallback.StatCallback cb) {
+        register(path, waiter);
+        zk.getData(path, true, new AsyncCallback.DataCallback() {
+            @Override
+            public void processResult(int rc, String p, Object ctx, byte[] data, Stat stat) {
+                if (rc != KeeperException.Code.OK.intValue()) {
+                    unregister(path, waiter);
+                }
+                cb.processResult(rc, p, ctx, stat);
+            }
+        }, null);
+    }
+
+    void register(String path, final Watcher waiter) {
+        //compute在同一路径上是原子的，不会和unregister删除空集合互相覆盖
+        waiters.compute(path, (p, set) -> {
+            if (set == null) {
+                set = Collections.newSetFromMap(new ConcurrentHashMap<Watcher, Boolean>());
+            }
+            set.add(waiter);
+            return set;
+        });
+    }
+
+    /**
+     * 取消waiter，比如等待超时的时候
+     * zookeeper上的watch无法撤销，之后触发时这个waiter不会再收到事件
+     *
+     * @param path
+     * @param waiter
+     */
+    void unregister(String path, final Watcher waiter) {
+        waiters.computeIfPresent(path, (p, set) -> {
+            set.remove(waiter);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private void deliver(Set<Watcher> set, WatchedEvent event) {
+        for (Watcher waiter : set) {
+            try {
+                waiter.process(event);
+            } catch (RuntimeException e) {
+                LOGGER.error("waiter process error: ", e);
+            }
+        }
+    }
+}
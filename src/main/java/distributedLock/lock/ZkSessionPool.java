@@ -0,0 +1,294 @@
+package distributedLock.lock;
+
+import distributedLock.exception.LockException;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 同一个zookeeper服务地址下的长连接session池
+ * zookeeper客户端本身是线程安全的，多个锁可以复用同一个session，
+ * 这里按轮询的方式把session借给锁使用，锁释放时不关闭session。
+ * 每个session的默认watcher是一个WatchDispatcher，节点事件只分发给等待这个节点的锁。
+ * 池中的锁创建节点后登记在这里，后台的LockNodeReaper据此清理没人管的节点
+ */
+class ZkSessionPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ZkSessionPool.class);
+
+    /**
+     * zookeeper服务地址
+     */
+    private final String config;
+    /**
+     * zk session超时时间
+     */
+    private final int sessionTimeout;
+    /**
+     * 池中的session，懒加载，过期后重建
+     */
+    private final Session[] sessions;
+    /**
+     * 轮询下标
+     */
+    private final AtomicInteger next = new AtomicInteger();
+    /**
+     * 已确认存在的锁目录，池中所有session共享
+     */
+    private final Set<String> knownDirs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * 池中的锁正在使用的节点 -> 使用它的锁对象，锁对象被回收说明节点已经没人管了
+     */
+    private final ConcurrentMap<String, WeakReference<Object>> liveNodes =
+            new ConcurrentHashMap<String, WeakReference<Object>>();
+    /**
+     * lockName -> 本进程观察到的持有时间统计
+     */
+    private final ConcurrentMap<String, LockStats> stats = new ConcurrentHashMap<String, LockStats>();
+    /**
+     * 清理无主节点的间隔，0表示不清理
+     */
+    private final long reapIntervalMillis;
+    /**
+     * 清理任务是否已经启动
+     */
+    private final AtomicBoolean reaperStarted = new AtomicBoolean();
+    /**
+     * 池是否已关闭
+     */
+    private volatile boolean closed;
+    /**
+     * 锁的后台定时任务，懒加载
+     */
+    private ScheduledExecutorService scheduler;
+
+    ZkSessionPool(String config, int size, int sessionTimeout, long reapIntervalMillis) {
+        if (size < 1) {
+            throw new IllegalArgumentException("session pool size must be positive: " + size);
+        }
+        this.config = config;
+        this.sessionTimeout = sessionTimeout;
+        this.sessions = new Session[size];
+        this.reapIntervalMillis = reapIntervalMillis;
+    }
+
+    /**
+     * 借出一个session，不需要归还
+     *
+     * @return
+     */
+    Session borrow() {
+        if (closed) {
+            throw new LockException("session pool for " + config + " is closed");
+        }
+        startReaper();
+        int i = (next.getAndIncrement() & Integer.MAX_VALUE) % sessions.length;
+        Session session = sessions[i];
+        if (session == null || !session.zk.getState().isAlive()) {
+            session = connect(i);
+        }
+        return session;
+    }
+
+    /**
+     * 建立(或重建已过期的)第i个session
+     *
+     * @param i
+     * @return
+     */
+    private synchronized Session connect(int i) {
+        Session session = sessions[i];
+        if (session != null && session.zk.getState().isAlive()) {
+            //其他线程已经重建好了
+            return session;
+        }
+        if (session != null) {
+            LOGGER.warn("session of " + config + " expired, recreate it");
+        }
+        WatchDispatcher dispatcher = new WatchDispatcher();
+        try {
+            session = new Session(new ZooKeeper(config, sessionTimeout, dispatcher), dispatcher);
+        } catch (IOException e) {
+            throw new LockException(e);
+        }
+        sessions[i] = session;
+        return session;
+    }
+
+    /**
+     * 已确认存在的锁目录缓存
+     *
+     * @return
+     */
+    Set<String> knownDirs() {
+        return knownDirs;
+    }
+
+    /**
+     * @param lockName
+     * @return lockName的持有时间统计，池中同名的锁共享
+     */
+    LockStats stats(String lockName) {
+        LockStats lockStats = stats.get(lockName);
+        if (lockStats == null) {
+            lockStats = new LockStats();
+            LockStats exist = stats.putIfAbsent(lockName, lockStats);
+            if (exist != null) {
+                lockStats = exist;
+            }
+        }
+        return lockStats;
+    }
+
+    /**
+     * 登记池中的锁正在使用的节点
+     *
+     * @param path
+     * @param owner 使用节点的锁对象，只保存弱引用
+     */
+    void registerNode(String path, Object owner) {
+        liveNodes.put(path, new WeakReference<Object>(owner));
+    }
+
+    /**
+     * 节点已删除(或删除失败交给清理任务)时取消登记
+     *
+     * @param path
+     */
+    void unregisterNode(String path) {
+        liveNodes.remove(path);
+    }
+
+    /**
+     * @param path
+     * @return 节点是否登记过，并且使用它的锁对象还没有被回收
+     */
+    boolean isLiveNode(String path) {
+        WeakReference<Object> ref = liveNodes.get(path);
+        if (ref == null) {
+            return false;
+        }
+        if (ref.get() == null) {
+            liveNodes.remove(path, ref);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return 池中当前存活的session id
+     */
+    Set<Long> sessionIds() {
+        Set<Long> ids = new HashSet<Long>();
+        for (Session session : sessions) {
+            if (session != null && session.zk.getState().isAlive()) {
+                ids.add(session.zk.getSessionId());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return 池中当前存活的zookeeper连接
+     */
+    List<ZooKeeper> zooKeepers() {
+        List<ZooKeeper> zooKeepers = new ArrayList<ZooKeeper>();
+        for (Session session : sessions) {
+            if (session != null && session.zk.getState().isAlive()) {
+                zooKeepers.add(session.zk);
+            }
+        }
+        return zooKeepers;
+    }
+
+    /**
+     * 第一次借出session时启动清理任务
+     */
+    private void startReaper() {
+        if (reapIntervalMillis <= 0 || !reaperStarted.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            scheduler().scheduleWithFixedDelay(new LockNodeReaper(this),
+                    reapIntervalMillis, reapIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("reaper of " + config + " rejected, pool is closed");
+        }
+    }
+
+    /**
+     * 锁的后台定时任务线程，daemon线程，池关闭时停止
+     *
+     * @return
+     */
+    synchronized ScheduledExecutorService scheduler() {
+        if (closed) {
+            throw new RejectedExecutionException("session pool for " + config + " is closed");
+        }
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "zk-lock-scheduler-" + config);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * 关闭池中所有session
+     */
+    synchronized void close() {
+        closed = true;
+        liveNodes.clear();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessions[i] != null) {
+                try {
+                    sessions[i].zk.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                sessions[i] = null;
+            }
+        }
+    }
+
+    /**
+     * 池中的一个session和它的事件分发器
+     */
+    static class Session {
+
+        final ZooKeeper zk;
+
+        final WatchDispatcher dispatcher;
+
+        Session(ZooKeeper zk, WatchDispatcher dispatcher) {
+            this.zk = zk;
+            this.dispatcher = dispatcher;
+        }
+    }
+}